@@ -15,47 +15,77 @@
  */
 package com.gitblit.service;
 
-import static org.eclipse.jgit.treewalk.filter.TreeFilter.ANY_DIFF;
-
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.Reader;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat.Mode;
+import org.apache.lucene.codecs.lucene62.Lucene62Codec;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.DateTools.Resolution;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.highlight.Fragmenter;
 import org.apache.lucene.search.highlight.Highlighter;
@@ -63,8 +93,14 @@ import org.apache.lucene.search.highlight.InvalidTokenOffsetsException;
 import org.apache.lucene.search.highlight.QueryScorer;
 import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
 import org.apache.lucene.search.highlight.SimpleSpanFragmenter;
+import org.apache.lucene.search.postingshighlight.Passage;
+import org.apache.lucene.search.postingshighlight.PassageFormatter;
+import org.apache.lucene.search.postingshighlight.PostingsHighlighter;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
@@ -74,10 +110,8 @@ import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache.FileKey;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
-import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.FS;
 import org.slf4j.Logger;
@@ -92,8 +126,11 @@ import com.gitblit.models.RefModel;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.SearchResult;
 import com.gitblit.utils.ArrayUtils;
+import com.gitblit.utils.BlobUtils;
 import com.gitblit.utils.JGitUtils;
+import com.gitblit.utils.LastCommitResolver;
 import com.gitblit.utils.StringUtils;
+import com.gitblit.utils.TimeUtils;
 
 /**
  * The Lucene service handles indexing and searching repositories.
@@ -116,24 +153,108 @@ public class LuceneService implements Runnable {
 	private static final String FIELD_DATE = "date";
 	private static final String FIELD_TAG = "tag";
 
+	/**
+	 * Type of the blob content field if content is not stored: indexed with offsets in the postings, so that matches can be highlighted in the
+	 * content read from the repository.
+	 */
+	private static final FieldType CONTENT_WITH_OFFSETS = new FieldType(TextField.TYPE_NOT_STORED);
+	/** Type of the commit message field if blob content is not stored; must have the same index options as {@link #CONTENT_WITH_OFFSETS}. */
+	private static final FieldType CONTENT_STORED_WITH_OFFSETS = new FieldType(TextField.TYPE_STORED);
+
+	static {
+		CONTENT_WITH_OFFSETS.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+		CONTENT_WITH_OFFSETS.freeze();
+		CONTENT_STORED_WITH_OFFSETS.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+		CONTENT_STORED_WITH_OFFSETS.freeze();
+	}
+
 	private static final String CONF_FILE = "lucene.conf";
 	private static final String LUCENE_DIR = "lucene";
 	private static final String CONF_INDEX = "index";
 	private static final String CONF_VERSION = "version";
+	private static final String CONF_STORE_CONTENT = "storeContent";
 	private static final String CONF_ALIAS = "aliases";
 	private static final String CONF_BRANCH = "branches";
 
+	/** gitblit.properties key for the number of repositories indexed concurrently. */
+	private static final String INDEXING_THREADS_KEY = "web.luceneIndexingThreads";
+	/** gitblit.properties key for the maximum size of blobs whose content is indexed. */
+	private static final String MAX_BLOB_SIZE_KEY = "web.luceneMaxBlobSize";
+	/** Default for {@link #MAX_BLOB_SIZE_KEY}: 1MB. */
+	private static final long MAX_BLOB_SIZE = 1024 * 1024;
+	/** gitblit.properties key defining whether blob content is stored in the index. */
+	private static final String STORE_CONTENT_KEY = "web.luceneStoreContent";
+	/** gitblit.properties key for the interval between full scans over all repositories. */
+	private static final String RECONCILE_FREQUENCY_KEY = "web.luceneReconcileFrequency";
+	/** gitblit.properties key for the number of threads adding blobs to indexes being rebuilt, shared by all repositories. */
+	private static final String REINDEX_THREADS_KEY = "web.luceneReindexThreads";
+	/** gitblit.properties key for the index profile: small, medium, large, or auto to pick one by repository size. */
+	private static final String INDEX_PROFILE_KEY = "web.luceneIndexProfile";
+	/** gitblit.properties key for the RAM budget shared by all concurrently indexing writers. */
+	private static final String INDEXING_RAM_BUDGET_KEY = "web.luceneIndexingRamBudget";
+
 	private final Logger logger = LoggerFactory.getLogger(LuceneService.class);
 
 	private final IStoredSettings storedSettings;
 	private final IRepositoryManager repositoryManager;
 	private final File repositoriesFolder;
 
-	private final Map<String, IndexSearcher> searchers = new ConcurrentHashMap<String, IndexSearcher>();
+	/** gitblit.properties key for the number of threads searching concurrently, shared by all searches. */
+	private static final String SEARCH_THREADS_KEY = "web.luceneSearchThreads";
+	/** gitblit.properties key for the maximum time in seconds a search may take. */
+	private static final String SEARCH_TIMEOUT_KEY = "web.luceneSearchTimeout";
+	/** Default for {@link #SEARCH_TIMEOUT_KEY}. */
+	private static final int SEARCH_TIMEOUT = 10;
+	/** gitblit.properties key for the number of pages of search results cached. */
+	private static final String RESULT_CACHE_SIZE_KEY = "web.luceneResultCacheSize";
+	/** Default for {@link #RESULT_CACHE_SIZE_KEY}. */
+	private static final int RESULT_CACHE_SIZE = 200;
+	/** Interval in milliseconds at which searchers are refreshed to see changes not yet committed. */
+	private static final long SEARCHER_REFRESH_INTERVAL = 1000;
+
+	private final Map<String, SearcherManager> searchers = new ConcurrentHashMap<String, SearcherManager>();
+	/** Maximum number of cached multi-repository searchers; typically there are only a few distinct sets of repositories users can see. */
+	private static final int MAX_MULTI_SEARCHERS = 16;
+	/** Multi-repository searchers by their sorted repository names, least recently used first. Guarded by itself. */
+	private final Map<String, MultiRepositorySearcher> multiSearchers = new LinkedHashMap<String, MultiRepositorySearcher>(16, 0.75f, true);
+	/** Pages of search results, least recently used first. Guarded by itself. */
+	private final Map<String, CachedResultPage> resultCache = new LinkedHashMap<String, CachedResultPage>(16, 0.75f, true);
 	private final Map<String, IndexWriter> writers = new ConcurrentHashMap<String, IndexWriter>();
 
 	private final String luceneIgnoreExtensions = "7z arc arj bin bmp dll doc docx exe gif gz jar jpg lib lzh odg odf odt pdf ppt png so swf xcf xls xlsx zip";
-	private Set<String> excludedExtensions;
+	private volatile Set<String> excludedExtensions;
+	private volatile long maxBlobSize = MAX_BLOB_SIZE;
+	private volatile boolean storeContent = true;
+
+	/** RAM buffer size per writer; a fair share of the RAM budget, or 0 to use the buffer size of the index profile. */
+	private volatile double ramBufferSizeMB;
+
+	/** Profiles of the open index writers. */
+	private final Map<String, IndexProfile> profiles = new ConcurrentHashMap<String, IndexProfile>();
+
+	private ExecutorService indexingExecutor;
+	private int indexingThreads;
+	private ExecutorService reindexExecutor;
+	private int reindexThreads;
+	private ScheduledExecutorService searcherRefresher;
+	private volatile ExecutorService searchExecutor;
+	private int searchThreads;
+
+	/** Ref updates reported since the last run. */
+	private final Queue<RefUpdate> pendingRefUpdates = new ConcurrentLinkedQueue<RefUpdate>();
+	/** Time of the last full scan over all repositories; 0 if there was none yet. */
+	private long lastReconciliation;
+
+	private static volatile LuceneService instance;
+
+	/**
+	 * Gets the running Lucene service, if any, so that the plugin can report ref updates to it.
+	 *
+	 * @return the service, or {@code null} if none is running
+	 */
+	public static LuceneService instance() {
+		return instance;
+	}
 
 	public LuceneService(IStoredSettings settings, IRepositoryManager repositoryManager) {
 
@@ -145,11 +266,21 @@ public class LuceneService implements Runnable {
 			exts = settings.getString(Keys.web.luceneIgnoreExtensions, exts);
 		}
 		excludedExtensions = new TreeSet<String>(StringUtils.getStringsFromValue(exts));
+		if (settings != null) {
+			maxBlobSize = settings.getFilesize(MAX_BLOB_SIZE_KEY, MAX_BLOB_SIZE);
+			storeContent = settings.getBoolean(STORE_CONTENT_KEY, true);
+		}
+		instance = this;
 	}
 
 	/**
 	 * Run is executed by the Gitblit executor service. Because this is called by an executor service, calls will queue - i.e. there can never be
-	 * concurrent execution of repository index updates.
+	 * concurrent execution of index updates of the same repository. Different repositories may be indexed concurrently if
+	 * {@code web.luceneIndexingThreads} is greater than one.
+	 * <p>
+	 * Normally only repositories reported through {@link #refUpdated(String, String, ObjectId, ObjectId)} are updated. All repositories are
+	 * scanned only on the first run and then at the interval given by {@code web.luceneReconcileFrequency}.
+	 * </p>
 	 */
 	@Override
 	public void run() {
@@ -160,26 +291,205 @@ public class LuceneService implements Runnable {
 		// reload the excluded extensions
 		String exts = storedSettings.getString(Keys.web.luceneIgnoreExtensions, luceneIgnoreExtensions);
 		excludedExtensions = new TreeSet<String>(StringUtils.getStringsFromValue(exts));
+		maxBlobSize = storedSettings.getFilesize(MAX_BLOB_SIZE_KEY, MAX_BLOB_SIZE);
+		storeContent = storedSettings.getBoolean(STORE_CONTENT_KEY, true);
 
 		if (repositoryManager.isCollectingGarbage()) {
 			// busy collecting garbage, try again later
 			return;
 		}
 
-		for (String repositoryName : repositoryManager.getRepositoryList()) {
-			RepositoryModel model = repositoryManager.getRepositoryModel(repositoryName);
-			if (model.hasCommits && !ArrayUtils.isEmpty(model.indexedBranches)) {
-				Repository repository = repositoryManager.getRepository(model.name);
-				if (repository == null) {
-					if (repositoryManager.isCollectingGarbage(model.name)) {
-						logger.info(MessageFormat.format("Skipping Lucene index of {0}, busy garbage collecting", repositoryName));
-					}
-					continue;
+		int threads = Math.max(1, storedSettings.getInteger(INDEXING_THREADS_KEY, getDefaultIndexingThreads()));
+		long ramBudget = storedSettings.getFilesize(INDEXING_RAM_BUDGET_KEY, 0L);
+		if (ramBudget > 0) {
+			// Each concurrently indexing writer gets its fair share, but at least 1MB.
+			ramBufferSizeMB = Math.max(1.0, ramBudget / (1024.0 * 1024.0) / threads);
+		} else {
+			ramBufferSizeMB = 0;
+		}
+
+		Collection<String> repositoryNames;
+		long now = System.currentTimeMillis();
+		int reconcileMinutes = TimeUtils.convertFrequencyToMinutes(storedSettings.getString(RECONCILE_FREQUENCY_KEY, "1 day"), 0);
+		// Take the pending updates first: anything arriving from now on is handled by the next cycle.
+		Map<String, Map<String, RefUpdate>> updates = drainRefUpdates();
+		if (lastReconciliation == 0 || reconcileMinutes <= 0 || now - lastReconciliation >= TimeUnit.MINUTES.toMillis(reconcileMinutes)) {
+			// Full scan over all repositories
+			lastReconciliation = now;
+			repositoryNames = repositoryManager.getRepositoryList();
+		} else if (updates.isEmpty()) {
+			return;
+		} else {
+			repositoryNames = updates.keySet();
+			if (logger.isDebugEnabled()) {
+				for (Map.Entry<String, Map<String, RefUpdate>> entry : updates.entrySet()) {
+					logger.debug(MessageFormat.format("Updating {0} Lucene index for {1}", entry.getKey(), entry.getValue().values()));
+				}
+			}
+		}
+		indexAll(repositoryNames, threads);
+	}
+
+	/**
+	 * Tells the service that a branch of a repository has been updated. The repository index will be updated on the next run. Unless a
+	 * reconciliation is due (see {@code web.luceneReconcileFrequency}), only repositories reported through this method are indexed.
+	 *
+	 * @param repositoryName
+	 * @param refName
+	 *            full name of the updated ref
+	 * @param oldId
+	 *            previous id of the ref; zero if the ref was created
+	 * @param newId
+	 *            new id of the ref; zero if the ref was deleted
+	 */
+	public void refUpdated(String repositoryName, String refName, ObjectId oldId, ObjectId newId) {
+		if (!storedSettings.getBoolean(Keys.web.allowLuceneIndexing, true)) {
+			return;
+		}
+		pendingRefUpdates.add(new RefUpdate(repositoryName, refName, oldId, newId));
+	}
+
+	/**
+	 * Removes all pending ref updates, coalescing all updates of the same ref into one.
+	 *
+	 * @return the pending ref updates by repository and ref name
+	 */
+	private Map<String, Map<String, RefUpdate>> drainRefUpdates() {
+		Map<String, Map<String, RefUpdate>> updates = new LinkedHashMap<String, Map<String, RefUpdate>>();
+		RefUpdate update;
+		while ((update = pendingRefUpdates.poll()) != null) {
+			Map<String, RefUpdate> refs = updates.computeIfAbsent(update.repositoryName, k -> new LinkedHashMap<String, RefUpdate>());
+			RefUpdate previous = refs.get(update.refName);
+			refs.put(update.refName, previous == null ? update : new RefUpdate(update.repositoryName, update.refName, previous.oldId, update.newId));
+		}
+		return updates;
+	}
+
+	private void indexAll(Collection<String> repositoryNames, int threads) {
+		if (threads == 1) {
+			for (String repositoryName : repositoryNames) {
+				index(repositoryName);
+			}
+			return;
+		}
+		// Index independent repositories concurrently. The semaphore bounds the number of pending tasks, so that we don't queue thousands of
+		// them, and lets us wait until all are done: run() must not return before this cycle is complete.
+		ExecutorService executor = getIndexingExecutor(threads);
+		Semaphore running = new Semaphore(threads);
+		try {
+			for (String repositoryName : repositoryNames) {
+				running.acquire();
+				try {
+					executor.execute(() -> {
+						try {
+							index(repositoryName);
+						} finally {
+							running.release();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Service closed
+					running.release();
+					break;
 				}
-				index(model, repository);
-				repository.close();
-				System.gc();
 			}
+			running.acquire(threads);
+			running.release(threads);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int getDefaultIndexingThreads() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * Gets the executor searching the segments of multi-repository searches in parallel.
+	 *
+	 * @return the executor, or {@code null} if searches are single-threaded
+	 */
+	private ExecutorService getSearchExecutor() {
+		int threads = storedSettings.getInteger(SEARCH_THREADS_KEY, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = searchExecutor;
+		if (threads <= 1 || executor != null && searchThreads == threads) {
+			return threads <= 1 ? null : executor;
+		}
+		return createSearchExecutor(threads);
+	}
+
+	private synchronized ExecutorService createSearchExecutor(int threads) {
+		if (searchExecutor == null || searchThreads != threads) {
+			if (searchExecutor != null) {
+				// Setting changed; searches that have submitted their tasks already complete on the old executor. Searchers are created per
+				// search (see MultiRepositorySearcher.newSearcher()), so none keeps using the old one.
+				searchExecutor.shutdown();
+			}
+			searchExecutor = Executors.newFixedThreadPool(threads, daemonThreads("LuceneSearcher-"));
+			searchThreads = threads;
+		}
+		return searchExecutor;
+	}
+
+	private synchronized ExecutorService getIndexingExecutor(int threads) {
+		if (indexingExecutor == null || indexingThreads != threads) {
+			if (indexingExecutor != null) {
+				// Setting changed; any old tasks are done since run() waits for them
+				indexingExecutor.shutdown();
+			}
+			indexingExecutor = Executors.newFixedThreadPool(threads, daemonThreads("LuceneIndexer-"));
+			indexingThreads = threads;
+		}
+		return indexingExecutor;
+	}
+
+	private synchronized ExecutorService getReindexExecutor(int threads) {
+		if (reindexExecutor == null || reindexThreads != threads) {
+			if (reindexExecutor != null) {
+				// Setting changed; running reindexes complete on the old executor
+				reindexExecutor.shutdown();
+			}
+			reindexExecutor = Executors.newFixedThreadPool(threads, daemonThreads("LuceneReindexer-"));
+			reindexThreads = threads;
+		}
+		return reindexExecutor;
+	}
+
+	private static ThreadFactory daemonThreads(String namePrefix) {
+		return new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Indexes a repository if it has indexed branches.
+	 *
+	 * @param repositoryName
+	 */
+	private void index(String repositoryName) {
+		RepositoryModel model = repositoryManager.getRepositoryModel(repositoryName);
+		if (model == null || !model.hasCommits || ArrayUtils.isEmpty(model.indexedBranches)) {
+			return;
+		}
+		Repository repository = repositoryManager.getRepository(model.name);
+		if (repository == null) {
+			if (repositoryManager.isCollectingGarbage(model.name)) {
+				logger.info(MessageFormat.format("Skipping Lucene index of {0}, busy garbage collecting", repositoryName));
+			}
+			return;
+		}
+		try {
+			index(model, repository);
+		} finally {
+			repository.close();
 		}
 	}
 
@@ -193,6 +503,11 @@ public class LuceneService implements Runnable {
 	 */
 	private void index(RepositoryModel model, Repository repository) {
 		try {
+			IndexWriter openWriter = writers.get(model.name);
+			if (openWriter != null) {
+				// The budget may have been changed; new writers pick it up when they are created.
+				openWriter.getConfig().setRAMBufferSizeMB(getRamBufferSizeMB(profiles.get(model.name)));
+			}
 			if (shouldReindex(repository)) {
 				// (re)build the entire index
 				IndexResult result = reindex(model, repository);
@@ -230,10 +545,25 @@ public class LuceneService implements Runnable {
 	 * @param repositoryName
 	 */
 	public synchronized void close(String repositoryName) {
+		synchronized (resultCache) {
+			// A new index of the repository might have the same version; this is rare enough to simply drop all results.
+			resultCache.clear();
+		}
+		synchronized (multiSearchers) {
+			Iterator<MultiRepositorySearcher> iterator = multiSearchers.values().iterator();
+			while (iterator.hasNext()) {
+				MultiRepositorySearcher multiSearcher = iterator.next();
+				if (multiSearcher.contains(repositoryName)) {
+					iterator.remove();
+					multiSearcher.decRef();
+				}
+			}
+		}
 		try {
-			IndexSearcher searcher = searchers.remove(repositoryName);
+			SearcherManager searcher = searchers.remove(repositoryName);
 			if (searcher != null) {
-				searcher.getIndexReader().close();
+				// Searches still holding a searcher finish on it; its reader is closed when they release it.
+				searcher.close();
 			}
 		} catch (Exception e) {
 			logger.error("Failed to close index searcher for " + repositoryName, e);
@@ -241,33 +571,93 @@ public class LuceneService implements Runnable {
 
 		try {
 			IndexWriter writer = writers.remove(repositoryName);
+			profiles.remove(repositoryName);
 			if (writer != null) {
 				writer.close();
+				writer.getDirectory().close();
 			}
 		} catch (Exception e) {
 			logger.error("Failed to close index writer for " + repositoryName, e);
 		}
 	}
 
+	/**
+	 * Discards all uncommitted changes of a repository index, and closes its writer/searcher objects.
+	 *
+	 * @param repositoryName
+	 */
+	private synchronized void rollback(String repositoryName) {
+		SearcherManager searcher = searchers.remove(repositoryName);
+		try {
+			if (searcher != null) {
+				searcher.close();
+			}
+		} catch (Exception e) {
+			logger.error("Failed to close index searcher for " + repositoryName, e);
+		}
+		IndexWriter writer = writers.remove(repositoryName);
+		profiles.remove(repositoryName);
+		try {
+			if (writer != null) {
+				// also closes the writer
+				writer.rollback();
+				writer.getDirectory().close();
+			}
+		} catch (Exception e) {
+			logger.error("Failed to roll back index writer for " + repositoryName, e);
+		}
+	}
+
 	/**
 	 * Close all Lucene indexers.
 	 *
 	 */
 	public synchronized void close() {
+		if (instance == this) {
+			instance = null;
+		}
+		if (indexingExecutor != null) {
+			indexingExecutor.shutdownNow();
+			indexingExecutor = null;
+		}
+		if (reindexExecutor != null) {
+			reindexExecutor.shutdownNow();
+			reindexExecutor = null;
+		}
+		if (searcherRefresher != null) {
+			searcherRefresher.shutdownNow();
+			searcherRefresher = null;
+		}
+		if (searchExecutor != null) {
+			searchExecutor.shutdownNow();
+			searchExecutor = null;
+		}
 		// close all writers
 		for (String writer : writers.keySet()) {
 			try {
-				writers.get(writer).close();
+				IndexWriter indexWriter = writers.get(writer);
+				indexWriter.close();
+				indexWriter.getDirectory().close();
 			} catch (Throwable t) {
 				logger.error("Failed to close Lucene writer for " + writer, t);
 			}
 		}
 		writers.clear();
+		profiles.clear();
 
 		// close all searchers
+		synchronized (resultCache) {
+			resultCache.clear();
+		}
+		synchronized (multiSearchers) {
+			for (MultiRepositorySearcher multiSearcher : multiSearchers.values()) {
+				multiSearcher.decRef();
+			}
+			multiSearchers.clear();
+		}
 		for (String searcher : searchers.keySet()) {
 			try {
-				searchers.get(searcher).getIndexReader().close();
+				searchers.get(searcher).close();
 			} catch (Throwable t) {
 				logger.error("Failed to close Lucene searcher for " + searcher, t);
 			}
@@ -339,23 +729,6 @@ public class LuceneService implements Runnable {
 		return name;
 	}
 
-	/**
-	 * Get the tree associated with the given commit.
-	 *
-	 * @param walk
-	 * @param commit
-	 * @return tree
-	 * @throws IOException
-	 */
-	private RevTree getTree(final RevWalk walk, final RevCommit commit) throws IOException {
-		final RevTree tree = commit.getTree();
-		if (tree != null) {
-			return tree;
-		}
-		walk.parseHeaders(commit);
-		return commit.getTree();
-	}
-
 	/**
 	 * Construct a keyname from the branch.
 	 *
@@ -379,8 +752,8 @@ public class LuceneService implements Runnable {
 	}
 
 	/**
-	 * Reads the Lucene config file for the repository to check the index version. If the index version is different, then rebuild the repository
-	 * index.
+	 * Reads the Lucene config file for the repository to check the index version. If the index version is different, or the index was built
+	 * with a different setting for storing content, then rebuild the repository index.
 	 *
 	 * @param repository
 	 * @return true of the on-disk index format is different than INDEX_VERSION
@@ -390,8 +763,8 @@ public class LuceneService implements Runnable {
 			FileBasedConfig config = getConfig(repository);
 			config.load();
 			int indexVersion = config.getInt(CONF_INDEX, CONF_VERSION, 0);
-			// reindex if versions do not match
-			return indexVersion != INDEX_VERSION;
+			// reindex if versions or the content storage mode do not match
+			return indexVersion != INDEX_VERSION || config.getBoolean(CONF_INDEX, CONF_STORE_CONTENT, true) != storeContent;
 		} catch (Throwable t) {
 		}
 		return true;
@@ -409,11 +782,14 @@ public class LuceneService implements Runnable {
 		if (!deleteIndex(model.name)) {
 			return result;
 		}
+		ObjectReader reader = null;
+		BlobIndexer blobIndexer = null;
 		try {
 			String[] encodings = storedSettings.getStrings(Keys.web.blobEncodings).toArray(new String[0]);
 			FileBasedConfig config = getConfig(repository);
 			Set<String> indexedCommits = new TreeSet<String>();
 			IndexWriter writer = getIndexWriter(model.name);
+			int threads = Math.max(1, storedSettings.getInteger(REINDEX_THREADS_KEY, Runtime.getRuntime().availableProcessors()));
 			// build a quick lookup of tags
 			Map<String, List<String>> tags = new HashMap<String, List<String>>();
 			for (RefModel tag : JGitUtils.getTags(repository, false, -1)) {
@@ -427,7 +803,8 @@ public class LuceneService implements Runnable {
 				tags.get(tag.getReferencedObjectId().getName()).add(tag.displayName);
 			}
 
-			ObjectReader reader = repository.newObjectReader();
+			reader = repository.newObjectReader();
+			blobIndexer = new BlobIndexer(repository, reader, writer, encodings, threads);
 
 			// get the local branches
 			List<RefModel> branches = JGitUtils.getLocalBranches(repository, true, -1);
@@ -497,84 +874,33 @@ public class LuceneService implements Runnable {
 					}
 				}
 
-				ByteArrayOutputStream os = new ByteArrayOutputStream();
-				byte[] tmp = new byte[32767];
-
-				RevWalk commitWalk = new RevWalk(reader);
-				commitWalk.markStart(tip);
-
-				RevCommit commit;
-				while ((paths.size() > 0) && (commit = commitWalk.next()) != null) {
-					TreeWalk diffWalk = new TreeWalk(reader);
-					int parentCount = commit.getParentCount();
-					switch (parentCount) {
-					case 0:
-						diffWalk.addTree(new EmptyTreeIterator());
-						break;
-					case 1:
-						diffWalk.addTree(getTree(commitWalk, commit.getParent(0)));
-						break;
-					default:
-						// skip merge commits
-						continue;
-					}
-					diffWalk.addTree(getTree(commitWalk, commit));
-					diffWalk.setFilter(ANY_DIFF);
-					diffWalk.setRecursive(true);
-					while ((paths.size() > 0) && diffWalk.next()) {
-						String path = diffWalk.getPathString();
-						if (!paths.containsKey(path)) {
-							continue;
-						}
-
-						// remove path from set
-						ObjectId blobId = paths.remove(path);
-						result.blobCount++;
-
+				// find the commit that last changed each path
+				try (LastCommitResolver resolver = new LastCommitResolver(reader, tip, paths.keySet())) {
+					RevCommit commit;
+					while ((commit = resolver.next()) != null) {
 						// index the blob metadata
 						String blobAuthor = getAuthor(commit);
 						String blobCommitter = getCommitter(commit);
 						String blobDate = DateTools.timeToString(commit.getCommitTime() * 1000L, Resolution.MINUTE);
-
-						Document doc = new Document();
-						doc.add(new Field(FIELD_OBJECT_TYPE, SearchObjectType.blob.name(), StringField.TYPE_STORED));
-						doc.add(new Field(FIELD_BRANCH, branchName, TextField.TYPE_STORED));
-						doc.add(new Field(FIELD_COMMIT, commit.getName(), TextField.TYPE_STORED));
-						doc.add(new Field(FIELD_PATH, path, TextField.TYPE_STORED));
-						doc.add(new Field(FIELD_DATE, blobDate, StringField.TYPE_STORED));
-						doc.add(new Field(FIELD_AUTHOR, blobAuthor, TextField.TYPE_STORED));
-						doc.add(new Field(FIELD_COMMITTER, blobCommitter, TextField.TYPE_STORED));
-
-						// determine extension to compare to the extension
-						// blacklist
-						String ext = null;
-						String name = path.toLowerCase();
-						if (name.indexOf('.') > -1) {
-							ext = name.substring(name.lastIndexOf('.') + 1);
-						}
-
-						// index the blob content
-						if (StringUtils.isEmpty(ext) || !excludedExtensions.contains(ext)) {
-							ObjectLoader ldr = repository.open(blobId, Constants.OBJ_BLOB);
-							InputStream in = ldr.openStream();
-							int n;
-							while ((n = in.read(tmp)) > 0) {
-								os.write(tmp, 0, n);
-							}
-							in.close();
-							byte[] content = os.toByteArray();
-							String str = StringUtils.decodeString(content, encodings);
-							doc.add(new Field(FIELD_CONTENT, str, TextField.TYPE_STORED));
-							os.reset();
+						for (String path : resolver.getPaths()) {
+							ObjectId blobId = paths.get(path);
+							result.blobCount++;
+
+							Document doc = new Document();
+							doc.add(new Field(FIELD_OBJECT_TYPE, SearchObjectType.blob.name(), StringField.TYPE_STORED));
+							doc.add(new Field(FIELD_BRANCH, branchName, TextField.TYPE_STORED));
+							doc.add(new Field(FIELD_COMMIT, commit.getName(), TextField.TYPE_STORED));
+							doc.add(new Field(FIELD_PATH, path, TextField.TYPE_STORED));
+							doc.add(new Field(FIELD_DATE, blobDate, StringField.TYPE_STORED));
+							doc.add(new Field(FIELD_AUTHOR, blobAuthor, TextField.TYPE_STORED));
+							doc.add(new Field(FIELD_COMMITTER, blobCommitter, TextField.TYPE_STORED));
+
+							// index the blob content and add the blob to the index
+							blobIndexer.add(doc, blobId, path);
 						}
-
-						// add the blob to the index
-						writer.addDocument(doc);
 					}
 				}
 
-				os.close();
-
 				// index the tip commit object
 				if (indexedCommits.add(tipId)) {
 					Document doc = createDocument(tip, tags.get(tipId));
@@ -600,95 +926,238 @@ public class LuceneService implements Runnable {
 			}
 
 			// finished
-			reader.close();
+			blobIndexer.finish();
+
+			// the index won't change much from now on; merge it into few segments
+			IndexProfile profile = profiles.get(model.name);
+			writer.forceMerge(profile != null ? profile.maxSegmentsAfterReindex : 1);
 
 			// commit all changes and reset the searcher
 			config.setInt(CONF_INDEX, null, CONF_VERSION, INDEX_VERSION);
+			config.setBoolean(CONF_INDEX, null, CONF_STORE_CONTENT, storeContent);
 			config.save();
 			writer.commit();
-			resetIndexSearcher(model.name);
+			refreshIndexSearcher(model.name);
 			result.success();
 		} catch (Exception e) {
 			logger.error("Exception while reindexing " + model.name, e);
+		} finally {
+			if (blobIndexer != null) {
+				// Blobs still being added must not end up in the index once it has been rolled back
+				blobIndexer.await();
+			}
+			if (reader != null) {
+				reader.close();
+			}
+			if (!result.success) {
+				// Don't let the next commit publish a partially rebuilt index
+				rollback(model.name);
+			}
 		}
 		return result;
 	}
 
 	/**
-	 * Incrementally update the index with the specified commit for the repository.
+	 * Adds blobs to the index of a repository being rebuilt. With more than one thread, blobs are inflated, decoded and added to the index
+	 * by a pool shared by all repositories being rebuilt, while the caller goes on walking the history; the {@link IndexWriter} is thread-safe.
+	 */
+	private class BlobIndexer {
+
+		private final Repository repository;
+		private final ObjectReader reader;
+		private final IndexWriter writer;
+		private final String[] encodings;
+		/** {@code null} if blobs are indexed by the caller. */
+		private final ExecutorService executor;
+		/** Bounds the number of pending blobs, which hold on to their documents. */
+		private final Semaphore pending;
+		private final int maxPending;
+		private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		BlobIndexer(Repository repository, ObjectReader reader, IndexWriter writer, String[] encodings, int threads) {
+			this.repository = repository;
+			this.reader = reader;
+			this.writer = writer;
+			this.encodings = encodings;
+			this.executor = threads > 1 ? getReindexExecutor(threads) : null;
+			this.maxPending = threads * 4;
+			this.pending = new Semaphore(maxPending);
+		}
+
+		/**
+		 * Adds the content of a blob to its document, and the document to the index.
+		 *
+		 * @param doc
+		 *            of the blob, without the content
+		 * @param blobId
+		 * @param path
+		 * @throws Exception
+		 *             if adding this or a previous blob failed
+		 */
+		void add(Document doc, ObjectId blobId, String path) throws Exception {
+			checkFailure();
+			if (executor == null) {
+				addContent(doc, reader, blobId, path, encodings);
+				writer.addDocument(doc);
+				return;
+			}
+			pending.acquire();
+			try {
+				executor.execute(() -> {
+					// ObjectReaders aren't thread-safe; this one is cheap and must stay open until the content has been indexed.
+					try (ObjectReader blobReader = repository.newObjectReader()) {
+						addContent(doc, blobReader, blobId, path, encodings);
+						writer.addDocument(doc);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						pending.release();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Service closed
+				pending.release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Waits until all blobs have been added.
+		 *
+		 * @throws Exception
+		 *             if adding a blob failed
+		 */
+		void finish() throws Exception {
+			await();
+			checkFailure();
+		}
+
+		/**
+		 * Waits until no more blobs are being added, whether successfully or not. If the calling thread is interrupted, returns without waiting
+		 * further.
+		 */
+		void await() {
+			if (executor == null) {
+				return;
+			}
+			try {
+				while (!pending.tryAcquire(maxPending, 1, TimeUnit.SECONDS)) {
+					if (executor.isShutdown()) {
+						// Tasks dropped from the queue never release their permits; wait for the running ones instead.
+						while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+							// Keep waiting
+						}
+						return;
+					}
+				}
+				pending.release(maxPending);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void checkFailure() throws Exception {
+			Exception e = failure.get();
+			if (e != null) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Incrementally updates the index of a branch with a range of commits. All changes of the range are applied in one batch: the documents of
+	 * all changed blobs are deleted at once, and only the latest version of each blob is added again. The caller must commit the writer.
 	 *
-	 * @param repositoryName
 	 * @param repository
+	 * @param writer
+	 *            of the repository index
 	 * @param branch
 	 *            the fully qualified branch name (e.g. refs/heads/master)
-	 * @param commit
-	 * @return true, if successful
+	 * @param commits
+	 *            the new commits of the branch, oldest first
+	 * @param tags
+	 *            names of annotated tags by the ids of the tagged commits
+	 * @return the IndexResult
+	 * @throws Exception
 	 */
-	private IndexResult index(String repositoryName, Repository repository, String branch, RevCommit commit) {
+	private IndexResult index(Repository repository, IndexWriter writer, String branch, List<RevCommit> commits, Map<String, List<String>> tags)
+			throws Exception {
 		IndexResult result = new IndexResult();
-		try {
-			String[] encodings = storedSettings.getStrings(Keys.web.blobEncodings).toArray(new String[0]);
-			List<PathChangeModel> changedPaths = JGitUtils.getFilesInCommit(repository, commit);
-			String revDate = DateTools.timeToString(commit.getCommitTime() * 1000L, Resolution.MINUTE);
-			IndexWriter writer = getIndexWriter(repositoryName);
-			for (PathChangeModel path : changedPaths) {
+		// paths whose blob documents are replaced, and the latest change of each blob still existing
+		Set<String> deletedPaths = new TreeSet<String>();
+		Map<String, BlobChange> changedBlobs = new TreeMap<String, BlobChange>();
+		for (RevCommit commit : commits) {
+			for (PathChangeModel path : JGitUtils.getFilesInCommit(repository, commit, false)) {
 				if (path.isSubmodule()) {
 					continue;
 				}
-				// delete the indexed blob
-				deleteBlob(repositoryName, branch, path.name);
-
-				// re-index the blob
+				// on a rename, name is the old path
+				deletedPaths.add(path.name);
+				changedBlobs.remove(path.name);
 				if (!ChangeType.DELETE.equals(path.changeType)) {
-					result.blobCount++;
-					Document doc = new Document();
-					doc.add(new Field(FIELD_OBJECT_TYPE, SearchObjectType.blob.name(), StringField.TYPE_STORED));
-					doc.add(new Field(FIELD_BRANCH, branch, TextField.TYPE_STORED));
-					doc.add(new Field(FIELD_COMMIT, commit.getName(), TextField.TYPE_STORED));
-					doc.add(new Field(FIELD_PATH, path.path, TextField.TYPE_STORED));
-					doc.add(new Field(FIELD_DATE, revDate, StringField.TYPE_STORED));
-					doc.add(new Field(FIELD_AUTHOR, getAuthor(commit), TextField.TYPE_STORED));
-					doc.add(new Field(FIELD_COMMITTER, getCommitter(commit), TextField.TYPE_STORED));
-
-					// determine extension to compare to the extension
-					// blacklist
-					String ext = null;
-					String name = path.name.toLowerCase();
-					if (name.indexOf('.') > -1) {
-						ext = name.substring(name.lastIndexOf('.') + 1);
-					}
-
-					if (StringUtils.isEmpty(ext) || !excludedExtensions.contains(ext)) {
-						// read the blob content
-						String str = JGitUtils.getStringContent(repository, commit.getTree(), path.path, encodings);
-						if (str != null) {
-							doc.add(new Field(FIELD_CONTENT, str, TextField.TYPE_STORED));
-							writer.addDocument(doc);
-						}
-					}
-				}
-			}
-			writer.commit();
-
-			// get any annotated commit tags
-			List<String> commitTags = new ArrayList<String>();
-			for (RefModel ref : JGitUtils.getTags(repository, false, -1)) {
-				if (ref.isAnnotatedTag() && ref.getReferencedObjectId().equals(commit.getId())) {
-					commitTags.add(ref.displayName);
+					deletedPaths.add(path.path);
+					changedBlobs.put(path.path, new BlobChange(commit, path));
 				}
 			}
 
-			// create and write the Lucene document
-			Document doc = createDocument(commit, commitTags);
+			// create and write the Lucene document of the commit
+			Document doc = createDocument(commit, tags.get(commit.getName()));
 			doc.add(new Field(FIELD_BRANCH, branch, TextField.TYPE_STORED));
+			writer.addDocument(doc);
 			result.commitCount++;
-			result.success = index(repositoryName, doc);
-		} catch (Exception e) {
-			logger.error(MessageFormat.format("Exception while indexing commit {0} in {1}", commit.getId().getName(), repositoryName), e);
+		}
+		if (deletedPaths.isEmpty()) {
+			return result;
+		}
+
+		// delete the indexed blobs; this doesn't affect documents added afterwards
+		QueryParser qp = new QueryParser(FIELD_SUMMARY, new StandardAnalyzer());
+		List<Query> queries = new ArrayList<Query>(deletedPaths.size());
+		for (String path : deletedPaths) {
+			queries.add(getBlobQuery(qp, branch, path));
+		}
+		writer.deleteDocuments(queries.toArray(new Query[queries.size()]));
+
+		// re-index the blobs
+		String[] encodings = storedSettings.getStrings(Keys.web.blobEncodings).toArray(new String[0]);
+		try (ObjectReader reader = repository.newObjectReader()) {
+			for (BlobChange change : changedBlobs.values()) {
+				RevCommit commit = change.commit;
+				PathChangeModel path = change.path;
+				result.blobCount++;
+				Document doc = new Document();
+				doc.add(new Field(FIELD_OBJECT_TYPE, SearchObjectType.blob.name(), StringField.TYPE_STORED));
+				doc.add(new Field(FIELD_BRANCH, branch, TextField.TYPE_STORED));
+				doc.add(new Field(FIELD_COMMIT, commit.getName(), TextField.TYPE_STORED));
+				doc.add(new Field(FIELD_PATH, path.path, TextField.TYPE_STORED));
+				doc.add(new Field(FIELD_DATE, DateTools.timeToString(commit.getCommitTime() * 1000L, Resolution.MINUTE), StringField.TYPE_STORED));
+				doc.add(new Field(FIELD_AUTHOR, getAuthor(commit), TextField.TYPE_STORED));
+				doc.add(new Field(FIELD_COMMITTER, getCommitter(commit), TextField.TYPE_STORED));
+
+				// index the blob content
+				addContent(doc, reader, ObjectId.fromString(path.objectId), path.path, encodings);
+				writer.addDocument(doc);
+			}
 		}
 		return result;
 	}
 
+	/**
+	 * Gets the query for the document of a blob.
+	 *
+	 * @param qp
+	 *            to parse the query with
+	 * @param branch
+	 * @param path
+	 * @return the query
+	 * @throws org.apache.lucene.queryparser.classic.ParseException
+	 */
+	private Query getBlobQuery(QueryParser qp, String branch, String path) throws org.apache.lucene.queryparser.classic.ParseException {
+		String pattern = MessageFormat.format("{0}:'{'0} AND {1}:\"'{'1'}'\" AND {2}:\"'{'2'}'\"", FIELD_OBJECT_TYPE, FIELD_BRANCH, FIELD_PATH);
+		String q = MessageFormat.format(pattern, SearchObjectType.blob.name(), branch, path);
+		return (new BooleanQuery.Builder()).add(qp.parse(q), Occur.MUST).build();
+	}
+
 	/**
 	 * Delete a blob from the specified branch of the repository index.
 	 *
@@ -699,12 +1168,9 @@ public class LuceneService implements Runnable {
 	 * @return true, if deleted, false if no record was deleted
 	 */
 	public boolean deleteBlob(String repositoryName, String branch, String path) throws Exception {
-		String pattern = MessageFormat.format("{0}:'{'0} AND {1}:\"'{'1'}'\" AND {2}:\"'{'2'}'\"", FIELD_OBJECT_TYPE, FIELD_BRANCH, FIELD_PATH);
-		String q = MessageFormat.format(pattern, SearchObjectType.blob.name(), branch, path);
-
 		StandardAnalyzer analyzer = new StandardAnalyzer();
 		QueryParser qp = new QueryParser(FIELD_SUMMARY, analyzer);
-		BooleanQuery query = (new BooleanQuery.Builder()).add(qp.parse(q), Occur.MUST).build();
+		Query query = getBlobQuery(qp, branch, path);
 
 		IndexWriter writer = getIndexWriter(repositoryName);
 		int numDocsBefore = writer.numDocs();
@@ -732,6 +1198,9 @@ public class LuceneService implements Runnable {
 		try {
 			FileBasedConfig config = getConfig(repository);
 			config.load();
+			String loadedConfig = config.toText();
+			// opened only if there is something to index, so that passes without changes don't keep a writer open per repository
+			IndexWriter writer = null;
 
 			// build a quick lookup of annotated tags
 			Map<String, List<String>> tags = new HashMap<String, List<String>>();
@@ -822,36 +1291,107 @@ public class LuceneService implements Runnable {
 					result.branchCount += 1;
 				}
 
-				// reverse the list of commits so we start with the first commit
-				Collections.reverse(revs);
-				for (RevCommit commit : revs) {
-					// index a commit
-					result.add(index(model.name, repository, branchName, commit));
+				if (!revs.isEmpty()) {
+					if (writer == null) {
+						writer = getIndexWriter(model.name);
+					}
+					// reverse the list of commits so we start with the first commit
+					Collections.reverse(revs);
+					result.add(index(repository, writer, branchName, revs, tags));
 				}
 
-				// update the config
+				// update the config; saved once the index has been committed
 				config.setInt(CONF_INDEX, null, CONF_VERSION, INDEX_VERSION);
+				config.setBoolean(CONF_INDEX, null, CONF_STORE_CONTENT, storeContent);
 				config.setString(CONF_ALIAS, null, keyName, branchName);
 				config.setString(CONF_BRANCH, null, keyName, branch.getObjectId().getName());
-				config.save();
 			}
 
 			// the deletedBranches set will normally be empty by this point
 			// unless a branch really was deleted and no longer exists
 			if (deletedBranches.size() > 0) {
+				Term[] terms = new Term[deletedBranches.size()];
+				int i = 0;
 				for (String branch : deletedBranches) {
-					IndexWriter writer = getIndexWriter(model.name);
-					writer.deleteDocuments(new Term(FIELD_BRANCH, branch));
-					writer.commit();
+					terms[i++] = new Term(FIELD_BRANCH, branch);
+					// forget the branch, so that it isn't deleted again on every run
+					String keyName = getBranchKey(branch);
+					config.unset(CONF_ALIAS, null, keyName);
+					config.unset(CONF_BRANCH, null, keyName);
+				}
+				if (writer == null) {
+					writer = getIndexWriter(model.name);
 				}
+				writer.deleteDocuments(terms);
 			}
-			result.success = true;
+
+			if (writer != null) {
+				// one commit for all changes of all branches
+				writer.commit();
+				refreshIndexSearcher(model.name);
+			}
+			if (!config.toText().equals(loadedConfig)) {
+				// e.g. a branch was reset to an older commit: nothing to index, but remember the new tip
+				config.save();
+			}
+			result.success();
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Exception while updating {0} Lucene index", model.name), t);
+			// Discard the partial update; it is done again from the last indexed commits on the next run.
+			rollback(model.name);
 		}
 		return result;
 	}
 
+	/**
+	 * Adds the content of a blob to a Lucene document, unless the blob is excluded by its extension, is larger than
+	 * {@code web.luceneMaxBlobSize}, or is binary. Binary blobs are detected from their first few bytes only. The content is streamed into the
+	 * index; it is read into a string only if the index stores content.
+	 *
+	 * @param doc
+	 * @param reader
+	 *            to read the blob with; must remain open until the document has been added to the index
+	 * @param blobId
+	 * @param path
+	 *            of the blob
+	 * @param encodings
+	 *            character sets to try
+	 * @return true, if content was added
+	 * @throws IOException
+	 */
+	private boolean addContent(Document doc, ObjectReader reader, ObjectId blobId, String path, String[] encodings) throws IOException {
+		// determine extension to compare to the extension
+		// blacklist
+		String ext = null;
+		String name = path.toLowerCase();
+		if (name.indexOf('.') > -1) {
+			ext = name.substring(name.lastIndexOf('.') + 1);
+		}
+		if (!StringUtils.isEmpty(ext) && excludedExtensions.contains(ext)) {
+			return false;
+		}
+		ObjectLoader loader = reader.open(blobId, Constants.OBJ_BLOB);
+		long size = loader.getSize();
+		long maxSize = maxBlobSize;
+		if (maxSize > 0 && size > maxSize) {
+			logger.debug(MessageFormat.format("not indexing content of {0} ({1} bytes)", path, size));
+			return false;
+		}
+		BlobUtils.Head head = BlobUtils.readHead(loader, BlobUtils.SNIFF_LENGTH);
+		if (head.isBinary()) {
+			head.close();
+			return false;
+		}
+		Reader content = BlobUtils.openReader(head, encodings);
+		if (storeContent) {
+			doc.add(new Field(FIELD_CONTENT, BlobUtils.toString(content, size), TextField.TYPE_STORED));
+		} else {
+			// Lucene closes the reader once the content has been indexed.
+			doc.add(new Field(FIELD_CONTENT, content, CONTENT_WITH_OFFSETS));
+		}
+		return true;
+	}
+
 	/**
 	 * Creates a Lucene document for a commit
 	 *
@@ -867,33 +1407,14 @@ public class LuceneService implements Runnable {
 		doc.add(new Field(FIELD_AUTHOR, getAuthor(commit), TextField.TYPE_STORED));
 		doc.add(new Field(FIELD_COMMITTER, getCommitter(commit), TextField.TYPE_STORED));
 		doc.add(new Field(FIELD_SUMMARY, commit.getShortMessage(), TextField.TYPE_STORED));
-		doc.add(new Field(FIELD_CONTENT, commit.getFullMessage(), TextField.TYPE_STORED));
+		// Commit messages are always stored, but must be indexed like blob contents.
+		doc.add(new Field(FIELD_CONTENT, commit.getFullMessage(), storeContent ? TextField.TYPE_STORED : CONTENT_STORED_WITH_OFFSETS));
 		if (!ArrayUtils.isEmpty(tags)) {
 			doc.add(new Field(FIELD_TAG, StringUtils.flattenStrings(tags), TextField.TYPE_STORED));
 		}
 		return doc;
 	}
 
-	/**
-	 * Incrementally index an object for the repository.
-	 *
-	 * @param repositoryName
-	 * @param doc
-	 * @return true, if successful
-	 */
-	private boolean index(String repositoryName, Document doc) {
-		try {
-			IndexWriter writer = getIndexWriter(repositoryName);
-			writer.addDocument(doc);
-			writer.commit();
-			resetIndexSearcher(repositoryName);
-			return true;
-		} catch (Exception e) {
-			logger.error(MessageFormat.format("Exception while incrementally updating {0} Lucene index", repositoryName), e);
-		}
-		return false;
-	}
-
 	private SearchResult createSearchResult(Document doc, float score, int hitId, int totalHits) throws ParseException {
 		SearchResult result = new SearchResult();
 		result.hitId = hitId;
@@ -913,30 +1434,112 @@ public class LuceneService implements Runnable {
 		return result;
 	}
 
-	private synchronized void resetIndexSearcher(String repository) throws IOException {
-		IndexSearcher searcher = searchers.remove(repository);
+	/**
+	 * Makes committed changes visible to new searches on the repository. Doesn't wait if another thread is refreshing the searcher already.
+	 *
+	 * @param repository
+	 */
+	private void refreshIndexSearcher(String repository) {
+		SearcherManager searcher = searchers.get(repository);
 		if (searcher != null) {
-			searcher.getIndexReader().close();
+			try {
+				searcher.maybeRefresh();
+			} catch (IOException | AlreadyClosedException e) {
+				logger.warn(MessageFormat.format("Cannot refresh {0} Lucene searcher", repository), e);
+			}
 		}
 	}
 
 	/**
-	 * Gets an index searcher for the repository.
-	 *
-	 * @param repository
-	 * @return
-	 * @throws IOException
+	 * Refreshes all searchers, so that searches see a recent state of the indexes even while they're being written.
 	 */
-	private IndexSearcher getIndexSearcher(String repository) throws IOException {
-		IndexSearcher searcher = searchers.get(repository);
+	private void refreshIndexSearchers() {
+		for (Map.Entry<String, SearcherManager> entry : searchers.entrySet()) {
+			try {
+				entry.getValue().maybeRefresh();
+			} catch (IOException | AlreadyClosedException e) {
+				// Closed concurrently, or will be tried again
+				logger.debug(MessageFormat.format("Cannot refresh {0} Lucene searcher", entry.getKey()), e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the searcher manager for the repository. Searchers must be acquired from it and be released after use.
+	 *
+	 * @param repository
+	 * @return the searcher manager
+	 * @throws IOException
+	 */
+	private SearcherManager getSearcherManager(String repository) throws IOException {
+		SearcherManager searcher = searchers.get(repository);
+		if (searcher != null) {
+			return searcher;
+		}
+		return createSearcherManager(repository);
+	}
+
+	private synchronized SearcherManager createSearcherManager(String repository) throws IOException {
+		SearcherManager searcher = searchers.get(repository);
 		if (searcher == null) {
 			IndexWriter writer = getIndexWriter(repository);
-			searcher = new IndexSearcher(DirectoryReader.open(writer, true, true));
+			searcher = new SearcherManager(writer, true, true, null);
 			searchers.put(repository, searcher);
+			if (searcherRefresher == null) {
+				searcherRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread thread = new Thread(r, "LuceneSearcherRefresh");
+					thread.setDaemon(true);
+					return thread;
+				});
+				searcherRefresher.scheduleWithFixedDelay(this::refreshIndexSearchers, SEARCHER_REFRESH_INTERVAL, SEARCHER_REFRESH_INTERVAL,
+						TimeUnit.MILLISECONDS);
+			}
 		}
 		return searcher;
 	}
 
+	/**
+	 * Gets a searcher over the indexes of several repositories. The searcher is shared with other searches over the same repositories as long as
+	 * none of their indexes has changed.
+	 *
+	 * @param repositories
+	 * @return the searcher, which must be released through {@link MultiRepositorySearcher#decRef()}
+	 * @throws IOException
+	 */
+	private MultiRepositorySearcher getMultiRepositorySearcher(String[] repositories) throws IOException {
+		String[] sorted = repositories.clone();
+		Arrays.sort(sorted);
+		String key = StringUtils.flattenStrings(Arrays.asList(sorted), "\n");
+		synchronized (multiSearchers) {
+			MultiRepositorySearcher multiSearcher = multiSearchers.get(key);
+			if (multiSearcher != null) {
+				if (multiSearcher.isCurrent()) {
+					multiSearcher.incRef();
+					return multiSearcher;
+				}
+				multiSearchers.remove(key);
+				multiSearcher.decRef();
+			}
+		}
+		// Not under the lock: creating searchers may create index writers, which locks the service.
+		MultiRepositorySearcher multiSearcher = new MultiRepositorySearcher(sorted);
+		// One reference for the cache, one for the caller
+		multiSearcher.incRef();
+		synchronized (multiSearchers) {
+			MultiRepositorySearcher previous = multiSearchers.put(key, multiSearcher);
+			if (previous != null) {
+				// Created concurrently
+				previous.decRef();
+			}
+			if (multiSearchers.size() > MAX_MULTI_SEARCHERS) {
+				Iterator<MultiRepositorySearcher> eldest = multiSearchers.values().iterator();
+				eldest.next().decRef();
+				eldest.remove();
+			}
+		}
+		return multiSearcher;
+	}
+
 	/**
 	 * Gets an index writer for the repository. The index will be created if it does not already exist or if forceCreate is specified.
 	 *
@@ -946,23 +1549,73 @@ public class LuceneService implements Runnable {
 	 */
 	private IndexWriter getIndexWriter(String repository) throws IOException {
 		IndexWriter indexWriter = writers.get(repository);
-		File repositoryFolder = FileKey.resolve(new File(repositoriesFolder, repository), FS.DETECTED);
-		File indexFolder = new File(repositoryFolder, LUCENE_DIR);
-		Directory directory = FSDirectory.open(indexFolder.toPath());
+		if (indexWriter != null) {
+			return indexWriter;
+		}
+		return createIndexWriter(repository);
+	}
 
+	private synchronized IndexWriter createIndexWriter(String repository) throws IOException {
+		// Repositories may be indexed concurrently, and searched while being indexed; make sure only one writer gets created.
+		IndexWriter indexWriter = writers.get(repository);
 		if (indexWriter == null) {
+			File repositoryFolder = FileKey.resolve(new File(repositoriesFolder, repository), FS.DETECTED);
+			File indexFolder = new File(repositoryFolder, LUCENE_DIR);
 			if (!indexFolder.exists()) {
 				indexFolder.mkdirs();
 			}
+			IndexProfile profile = getIndexProfile(repositoryFolder);
+			Directory directory = profile.openDirectory(indexFolder);
 			StandardAnalyzer analyzer = new StandardAnalyzer();
 			IndexWriterConfig config = new IndexWriterConfig(analyzer);
 			config.setOpenMode(OpenMode.CREATE_OR_APPEND);
-			indexWriter = new IndexWriter(directory, config);
+			config.setRAMBufferSizeMB(getRamBufferSizeMB(profile));
+			profile.configure(config);
+			try {
+				indexWriter = new IndexWriter(directory, config);
+			} catch (IOException | RuntimeException e) {
+				directory.close();
+				throw e;
+			}
 			writers.put(repository, indexWriter);
+			profiles.put(repository, profile);
+			logger.debug(MessageFormat.format("Opened {0} Lucene index with profile {1}", repository, profile));
 		}
 		return indexWriter;
 	}
 
+	/**
+	 * Determines the index profile for a repository: configured by {@code web.luceneIndexProfile}, or picked by the size of the repository's
+	 * pack files.
+	 *
+	 * @param repositoryFolder
+	 * @return the profile
+	 */
+	private IndexProfile getIndexProfile(File repositoryFolder) {
+		String name = storedSettings.getString(INDEX_PROFILE_KEY, "auto");
+		for (IndexProfile profile : IndexProfile.values()) {
+			if (profile.name().equalsIgnoreCase(name)) {
+				return profile;
+			}
+		}
+		long size = 0;
+		File[] packFiles = new File(repositoryFolder, "objects/pack").listFiles();
+		if (packFiles != null) {
+			for (File packFile : packFiles) {
+				size += packFile.length();
+			}
+		}
+		return IndexProfile.forRepositorySize(size);
+	}
+
+	private double getRamBufferSizeMB(IndexProfile profile) {
+		double budget = ramBufferSizeMB;
+		if (budget > 0) {
+			return budget;
+		}
+		return profile != null ? profile.ramBufferSizeMB : IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+	}
+
 	/**
 	 * Searches the specified repositories for the given text or query
 	 *
@@ -999,6 +1652,34 @@ public class LuceneService implements Runnable {
 	 *
 	 */
 	public List<SearchResult> search(String text, int page, int pageSize, String... repositories) {
+		ResultPage result = search(text, page, pageSize, null, repositories);
+		return result == null ? null : result.results;
+	}
+
+	/**
+	 * Searches the specified repositories for the given text or query, continuing from the previous page if possible.
+	 *
+	 * @param text
+	 *            if the text is null or empty, null is returned
+	 * @param page
+	 *            the page number to retrieve. page is 1-indexed.
+	 * @param pageSize
+	 *            the number of elements to return for this page
+	 * @param cursor
+	 *            the {@link ResultPage#nextCursor} of the previous page, or {@code null}. If the cursor doesn't belong to this page or the
+	 *            indexes have changed since, the search starts from the first hit again.
+	 * @param repositories
+	 *            a list of repositories to search. if no repositories are specified null is returned.
+	 * @return the page of search results
+	 */
+	public ResultPage search(String text, int page, int pageSize, String cursor, List<String> repositories) {
+		if (ArrayUtils.isEmpty(repositories)) {
+			return null;
+		}
+		return search(text, page, pageSize, cursor, repositories.toArray(new String[0]));
+	}
+
+	private ResultPage search(String text, int page, int pageSize, String cursor, String[] repositories) {
 		if (StringUtils.isEmpty(text)) {
 			return null;
 		}
@@ -1006,8 +1687,34 @@ public class LuceneService implements Runnable {
 			return null;
 		}
 		Set<SearchResult> results = new LinkedHashSet<SearchResult>();
+		String nextCursor = null;
 		StandardAnalyzer analyzer = new StandardAnalyzer();
+		// Searchers acquired for this search; they must be released when done
+		SearcherManager manager = null;
+		IndexSearcher acquired = null;
+		MultiRepositorySearcher multiSearcher = null;
 		try {
+			IndexSearcher searcher;
+			long version;
+			if (repositories.length == 1) {
+				// single repository search
+				manager = getSearcherManager(repositories[0]);
+				acquired = manager.acquire();
+				searcher = acquired;
+				version = getVersion(acquired.getIndexReader());
+			} else {
+				// multiple repository search
+				multiSearcher = getMultiRepositorySearcher(repositories);
+				searcher = multiSearcher.newSearcher();
+				version = multiSearcher.version;
+			}
+
+			String cacheKey = getResultCacheKey(text, page, pageSize, repositories);
+			ResultPage cached = getCachedResults(cacheKey, version);
+			if (cached != null) {
+				return cached;
+			}
+
 			// default search checks summary and content
 			BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
 			QueryParser qp;
@@ -1019,31 +1726,31 @@ public class LuceneService implements Runnable {
 			qp.setAllowLeadingWildcard(true);
 			queryBuilder.add(qp.parse(text), Occur.SHOULD);
 
-			IndexSearcher searcher;
-			if (repositories.length == 1) {
-				// single repository search
-				searcher = getIndexSearcher(repositories[0]);
-			} else {
-				// multiple repository search
-				List<IndexReader> readers = new ArrayList<IndexReader>();
-				for (String repository : repositories) {
-					IndexSearcher repositoryIndex = getIndexSearcher(repository);
-					readers.add(repositoryIndex.getIndexReader());
-				}
-				IndexReader[] rdrs = readers.toArray(new IndexReader[readers.size()]);
-				MultiSourceReader reader = new MultiSourceReader(rdrs);
-				searcher = new IndexSearcher(reader);
-			}
-
 			BooleanQuery query = queryBuilder.build();
 			Query rewrittenQuery = searcher.rewrite(query);
 			logger.debug(rewrittenQuery.toString());
 
-			TopScoreDocCollector collector = TopScoreDocCollector.create(5000);
-			searcher.search(rewrittenQuery, collector);
 			int offset = Math.max(0, (page - 1) * pageSize);
-			ScoreDoc[] hits = collector.topDocs(offset, pageSize).scoreDocs;
-			int totalHits = collector.getTotalHits();
+			// Continue after the last hit of the previous page if possible; otherwise collect all hits up to this page.
+			ScoreDoc after = parseCursor(cursor, page, version);
+			int timeout = storedSettings.getInteger(SEARCH_TIMEOUT_KEY, SEARCH_TIMEOUT);
+			TopDocsCollectorManager collectors = new TopDocsCollectorManager(after != null ? pageSize : offset + pageSize, after,
+					TimeUnit.SECONDS.toMillis(Math.max(0, timeout)));
+			TopDocs topDocs = searcher.search(rewrittenQuery, collectors);
+			if (collectors.timedOut) {
+				logger.warn(MessageFormat.format("Search for {0} timed out after {1} s; results are incomplete", text, timeout));
+			}
+			int skip = after != null ? 0 : offset;
+			ScoreDoc[] hits = skip >= topDocs.scoreDocs.length ? new ScoreDoc[0]
+					: Arrays.copyOfRange(topDocs.scoreDocs, skip, Math.min(skip + pageSize, topDocs.scoreDocs.length));
+			// Counted by the collectors anyway, also with a cursor.
+			int totalHits = topDocs.totalHits;
+			if (hits.length == pageSize && offset + pageSize < totalHits) {
+				nextCursor = formatCursor(page + 1, version, hits[hits.length - 1]);
+			}
+			// Blob results without stored content; highlighted from the repositories in one go
+			List<Integer> unstoredDocs = new ArrayList<Integer>();
+			List<SearchResult> unstoredResults = new ArrayList<SearchResult>();
 			for (int i = 0; i < hits.length; i++) {
 				int docId = hits[i].doc;
 				Document doc = searcher.doc(docId);
@@ -1053,18 +1760,239 @@ public class LuceneService implements Runnable {
 					result.repository = repositories[0];
 				} else {
 					// multi-repository search
-					MultiSourceReader reader = (MultiSourceReader) searcher.getIndexReader();
-					int index = reader.getSourceIndex(docId);
-					result.repository = repositories[index];
+					result.repository = multiSearcher.getRepository(docId);
 				}
 				String content = doc.get(FIELD_CONTENT);
-				result.fragment = getHighlightedFragment(analyzer, query, content, result);
+				if (content == null && SearchObjectType.blob == result.type) {
+					unstoredDocs.add(docId);
+					unstoredResults.add(result);
+				} else {
+					result.fragment = getHighlightedFragment(analyzer, query, content, result);
+				}
 				results.add(result);
 			}
+			if (!unstoredDocs.isEmpty()) {
+				highlightFromRepositories(searcher, rewrittenQuery, unstoredDocs, unstoredResults);
+			}
+			ResultPage resultPage = new ResultPage(new ArrayList<SearchResult>(results), nextCursor);
+			if (!collectors.timedOut) {
+				cacheResults(cacheKey, version, resultPage);
+			}
+			return resultPage;
 		} catch (Exception e) {
 			logger.error(MessageFormat.format("Exception while searching for {0}", text), e);
+		} finally {
+			if (acquired != null) {
+				try {
+					manager.release(acquired);
+				} catch (IOException e) {
+					logger.error(MessageFormat.format("Failed to release {0} Lucene searcher", repositories[0]), e);
+				}
+			}
+			if (multiSearcher != null) {
+				multiSearcher.decRef();
+			}
 		}
-		return new ArrayList<SearchResult>(results);
+		return new ResultPage(new ArrayList<SearchResult>(results), nextCursor);
+	}
+
+	/**
+	 * Gets the key of a page of search results in the result cache. Results don't depend on the user: the repositories searched are those the
+	 * user may see, and they are part of the key.
+	 */
+	private static String getResultCacheKey(String text, int page, int pageSize, String[] repositories) {
+		String[] sorted = repositories.clone();
+		Arrays.sort(sorted);
+		// Whitespace between terms doesn't change the query.
+		String query = text.trim().replaceAll("\\s+", " ");
+		return query + '\n' + page + '\n' + pageSize + '\n' + StringUtils.flattenStrings(Arrays.asList(sorted), "\n");
+	}
+
+	/**
+	 * Gets a page of search results from the result cache.
+	 *
+	 * @param key
+	 *            see {@link #getResultCacheKey(String, int, int, String[])}
+	 * @param version
+	 *            of the index reader to be searched
+	 * @return a copy of the cached page, or {@code null} if it isn't cached or the indexes have changed since
+	 */
+	private ResultPage getCachedResults(String key, long version) {
+		CachedResultPage cached;
+		synchronized (resultCache) {
+			cached = resultCache.get(key);
+			if (cached != null && cached.version != version) {
+				resultCache.remove(key);
+				cached = null;
+			}
+		}
+		if (cached == null) {
+			return null;
+		}
+		return new ResultPage(new ArrayList<SearchResult>(cached.page.results), cached.page.nextCursor);
+	}
+
+	private void cacheResults(String key, long version, ResultPage page) {
+		int maxEntries = storedSettings.getInteger(RESULT_CACHE_SIZE_KEY, RESULT_CACHE_SIZE);
+		synchronized (resultCache) {
+			if (maxEntries <= 0) {
+				resultCache.clear();
+				return;
+			}
+			resultCache.put(key, new CachedResultPage(version, page));
+			Iterator<CachedResultPage> eldest = resultCache.values().iterator();
+			while (resultCache.size() > maxEntries) {
+				eldest.next();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * A page of search results in the result cache, with the version of the index reader it was computed from.
+	 */
+	private static class CachedResultPage {
+
+		final long version;
+		final ResultPage page;
+
+		CachedResultPage(long version, ResultPage page) {
+			this.version = version;
+			this.page = page;
+		}
+	}
+
+	/**
+	 * Gets a number identifying the state of an index reader: it changes whenever documents are added or deleted.
+	 */
+	private static long getVersion(IndexReader reader) {
+		if (reader instanceof DirectoryReader) {
+			return ((DirectoryReader) reader).getVersion();
+		}
+		List<IndexReaderContext> children = reader.getContext().children();
+		if (children == null) {
+			return System.identityHashCode(reader);
+		}
+		long version = 17;
+		for (IndexReaderContext child : children) {
+			version = 31 * version + getVersion(child.reader());
+		}
+		return version;
+	}
+
+	/**
+	 * Creates the cursor for a page of search results.
+	 *
+	 * @param page
+	 *            the page the cursor is for
+	 * @param version
+	 *            of the searched index reader
+	 * @param last
+	 *            the last hit of the previous page
+	 * @return the cursor
+	 */
+	private static String formatCursor(int page, long version, ScoreDoc last) {
+		return page + "." + Long.toHexString(version) + "." + Integer.toHexString(last.doc) + "." + Integer.toHexString(Float.floatToIntBits(last.score));
+	}
+
+	/**
+	 * Parses a cursor created by {@link #formatCursor(int, long, ScoreDoc)}.
+	 *
+	 * @return the hit to search after, or {@code null} if the cursor is missing or doesn't fit the page or the index reader
+	 */
+	private static ScoreDoc parseCursor(String cursor, int page, long version) {
+		if (StringUtils.isEmpty(cursor)) {
+			return null;
+		}
+		String[] parts = cursor.split("\\.");
+		if (parts.length != 4) {
+			return null;
+		}
+		try {
+			if (Integer.parseInt(parts[0]) != page || Long.parseUnsignedLong(parts[1], 16) != version) {
+				return null;
+			}
+			return new ScoreDoc(Integer.parseUnsignedInt(parts[2], 16), Float.intBitsToFloat(Integer.parseUnsignedInt(parts[3], 16)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A page of search results.
+	 */
+	public static class ResultPage {
+
+		/** The search results in order from highest to the lowest score. */
+		public final List<SearchResult> results;
+
+		/** Cursor to pass when searching for the next page; {@code null} if this is the last page. */
+		public final String nextCursor;
+
+		ResultPage(List<SearchResult> results, String nextCursor) {
+			this.results = results;
+			this.nextCursor = nextCursor;
+		}
+	}
+
+	/**
+	 * Highlights blob search results whose content is not stored in the index. The postings of the index provide the offsets of the matches;
+	 * the content is read from the repository.
+	 *
+	 * @param searcher
+	 * @param query
+	 * @param docIds
+	 *            of the blob results
+	 * @param results
+	 *            to set the fragments of, in the same order as {@code docIds}
+	 */
+	private void highlightFromRepositories(IndexSearcher searcher, Query query, List<Integer> docIds, List<SearchResult> results) {
+		long maxSize = maxBlobSize;
+		int maxLength = maxSize > 0 && maxSize < Integer.MAX_VALUE ? (int) maxSize : Integer.MAX_VALUE - 1;
+		int[] ids = new int[docIds.size()];
+		Map<Integer, String> repositoryNames = new HashMap<Integer, String>();
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = docIds.get(i);
+			repositoryNames.put(ids[i], results.get(i).repository);
+		}
+		try {
+			Object[] highlights = new RepositoryContentHighlighter(maxLength, repositoryNames).highlight(query, searcher, ids);
+			for (int i = 0; i < ids.length; i++) {
+				SearchResult result = results.get(i);
+				@SuppressWarnings("unchecked")
+				List<Fragment> fragments = (List<Fragment>) highlights[i];
+				result.fragment = fragments == null ? "" : formatFragments(fragments, result);
+			}
+		} catch (IOException e) {
+			logger.error("Cannot highlight search results", e);
+			for (SearchResult result : results) {
+				result.fragment = "";
+			}
+		}
+	}
+
+	/**
+	 * Formats fragments determined by the {@link RepositoryContentHighlighter} like {@link #getHighlightedFragment}.
+	 */
+	private String formatFragments(List<Fragment> fragments, SearchResult result) {
+		// create fragment tag with line number and language
+		String lang = "";
+		String ext = StringUtils.getFileExtension(result.path).toLowerCase();
+		if (!StringUtils.isEmpty(ext)) {
+			// maintain leading space!
+			lang = " lang-" + ext;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0, len = fragments.size(); i < len; i++) {
+			Fragment fragment = fragments.get(i);
+			sb.append(MessageFormat.format("<pre class=\"prettyprint linenums:{0,number,0}{1}\">", fragment.line, lang));
+			sb.append(fragment.html);
+			sb.append("</pre>");
+			if (i < len - 1) {
+				sb.append("<span class=\"ellipses\">...</span><br/>");
+			}
+		}
+		return sb.toString();
 	}
 
 	/**
@@ -1168,6 +2096,243 @@ public class LuceneService implements Runnable {
 		return sb.toString();
 	}
 
+	/**
+	 * Index writer settings for repositories of different sizes.
+	 */
+	private enum IndexProfile {
+
+		/** For many small indexes: little memory and few files per index. */
+		SMALL(16, true, 10, 1024, 1, false, Mode.BEST_SPEED),
+
+		MEDIUM(64, false, 10, 5 * 1024, 1, true, Mode.BEST_SPEED),
+
+		/** For monorepos: bigger buffers, less merging while indexing, and smaller stored fields. */
+		LARGE(256, false, 20, 5 * 1024, 8, true, Mode.BEST_COMPRESSION);
+
+		/** Repositories with smaller pack files use {@link #SMALL}. */
+		private static final long SMALL_REPOSITORY = 100L * 1024 * 1024;
+		/** Repositories with larger pack files use {@link #LARGE}. */
+		private static final long LARGE_REPOSITORY = 2L * 1024 * 1024 * 1024;
+
+		final double ramBufferSizeMB;
+		final boolean compoundFile;
+		final double segmentsPerTier;
+		final double maxMergedSegmentMB;
+		final int maxSegmentsAfterReindex;
+		final boolean mmap;
+		final Mode storedFieldsMode;
+
+		IndexProfile(double ramBufferSizeMB, boolean compoundFile, double segmentsPerTier, double maxMergedSegmentMB, int maxSegmentsAfterReindex,
+				boolean mmap, Mode storedFieldsMode) {
+			this.ramBufferSizeMB = ramBufferSizeMB;
+			this.compoundFile = compoundFile;
+			this.segmentsPerTier = segmentsPerTier;
+			this.maxMergedSegmentMB = maxMergedSegmentMB;
+			this.maxSegmentsAfterReindex = maxSegmentsAfterReindex;
+			this.mmap = mmap;
+			this.storedFieldsMode = storedFieldsMode;
+		}
+
+		static IndexProfile forRepositorySize(long size) {
+			if (size < SMALL_REPOSITORY) {
+				return SMALL;
+			}
+			return size < LARGE_REPOSITORY ? MEDIUM : LARGE;
+		}
+
+		Directory openDirectory(File indexFolder) throws IOException {
+			if (mmap && org.apache.lucene.util.Constants.JRE_IS_64BIT && MMapDirectory.UNMAP_SUPPORTED) {
+				return new MMapDirectory(indexFolder.toPath());
+			}
+			// Lucene's choice for the platform; NIOFSDirectory except on Windows
+			return org.apache.lucene.util.Constants.WINDOWS ? FSDirectory.open(indexFolder.toPath()) : new NIOFSDirectory(indexFolder.toPath());
+		}
+
+		void configure(IndexWriterConfig config) {
+			config.setUseCompoundFile(compoundFile);
+			config.setCodec(new Lucene62Codec(storedFieldsMode));
+			TieredMergePolicy mergePolicy = new TieredMergePolicy();
+			mergePolicy.setSegmentsPerTier(segmentsPerTier);
+			mergePolicy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+			mergePolicy.setNoCFSRatio(compoundFile ? 1.0 : 0.0);
+			config.setMergePolicy(mergePolicy);
+		}
+	}
+
+	/**
+	 * The latest change of a blob in a range of commits.
+	 */
+	private static class BlobChange {
+		final RevCommit commit;
+		final PathChangeModel path;
+
+		BlobChange(RevCommit commit, PathChangeModel path) {
+			this.commit = commit;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * A highlighted fragment of a blob.
+	 */
+	private static class Fragment {
+		final int line;
+		final String html;
+
+		Fragment(int line, String html) {
+			this.line = line;
+			this.html = html;
+		}
+	}
+
+	/**
+	 * Formats the passages found by the {@link RepositoryContentHighlighter} into a list of {@link Fragment}s. Each passage is extended to the
+	 * beginning of its first line, and the matches are wrapped in highlight spans.
+	 */
+	private static class FragmentFormatter extends PassageFormatter {
+
+		@Override
+		public Object format(Passage[] passages, String content) {
+			List<Fragment> fragments = new ArrayList<Fragment>(passages.length);
+			for (Passage passage : passages) {
+				int start = passage.getStartOffset();
+				int end = Math.min(passage.getEndOffset(), content.length());
+				// restore complete first line of fragment
+				int lineStart = content.lastIndexOf('\n', start - 1) + 1;
+				int line = Math.max(1, StringUtils.countLines(content.substring(0, start)));
+				StringBuilder html = new StringBuilder();
+				int pos = lineStart;
+				for (int i = 0; i < passage.getNumMatches(); i++) {
+					int matchStart = passage.getMatchStarts()[i];
+					int matchEnd = Math.min(passage.getMatchEnds()[i], end);
+					if (matchStart < pos || matchStart >= matchEnd) {
+						// overlapping match
+						continue;
+					}
+					html.append(StringUtils.escapeForHtml(content.substring(pos, matchStart), false));
+					html.append("<span class=\"highlight\">");
+					html.append(StringUtils.escapeForHtml(content.substring(matchStart, matchEnd), false));
+					html.append("</span>");
+					pos = matchEnd;
+				}
+				html.append(StringUtils.escapeForHtml(content.substring(pos, end), false));
+				fragments.add(new Fragment(line, html.toString()));
+			}
+			return fragments;
+		}
+	}
+
+	/**
+	 * A postings highlighter that reads the blob contents from the repositories instead of from stored fields.
+	 */
+	private class RepositoryContentHighlighter extends PostingsHighlighter {
+
+		private final Map<Integer, String> repositoryNames;
+
+		private final PassageFormatter formatter = new FragmentFormatter();
+
+		RepositoryContentHighlighter(int maxLength, Map<Integer, String> repositoryNames) {
+			super(maxLength);
+			this.repositoryNames = repositoryNames;
+		}
+
+		Object[] highlight(Query query, IndexSearcher searcher, int[] docIds) throws IOException {
+			int[] maxPassages = new int[] { 3 };
+			return highlightFieldsAsObjects(new String[] { FIELD_CONTENT }, query, searcher, docIds, maxPassages).get(FIELD_CONTENT);
+		}
+
+		@Override
+		protected PassageFormatter getFormatter(String field) {
+			return formatter;
+		}
+
+		@Override
+		protected String[][] loadFieldValues(IndexSearcher searcher, String[] fields, int[] docIds, int maxLength) throws IOException {
+			String[][] contents = new String[fields.length][docIds.length];
+			String[] encodings = storedSettings.getStrings(Keys.web.blobEncodings).toArray(new String[0]);
+			Set<String> fieldsToLoad = new TreeSet<String>();
+			fieldsToLoad.add(FIELD_COMMIT);
+			fieldsToLoad.add(FIELD_PATH);
+			Map<String, Repository> opened = new HashMap<String, Repository>();
+			try {
+				for (int i = 0; i < docIds.length; i++) {
+					Document doc = searcher.doc(docIds[i], fieldsToLoad);
+					String repositoryName = repositoryNames.get(docIds[i]);
+					Repository repository = null;
+					if (repositoryName != null) {
+						repository = opened.get(repositoryName);
+						if (repository == null) {
+							repository = repositoryManager.getRepository(repositoryName);
+							if (repository != null) {
+								opened.put(repositoryName, repository);
+							}
+						}
+					}
+					String content = "";
+					if (repository != null) {
+						content = readContent(repository, doc.get(FIELD_COMMIT), doc.get(FIELD_PATH), encodings, maxLength);
+					}
+					for (int j = 0; j < fields.length; j++) {
+						contents[j][i] = content;
+					}
+				}
+			} finally {
+				for (Repository repository : opened.values()) {
+					repository.close();
+				}
+			}
+			return contents;
+		}
+
+		private String readContent(Repository repository, String commitId, String path, String[] encodings, int maxLength) {
+			if (StringUtils.isEmpty(commitId) || StringUtils.isEmpty(path)) {
+				return "";
+			}
+			try (RevWalk walk = new RevWalk(repository)) {
+				RevCommit commit = walk.parseCommit(ObjectId.fromString(commitId));
+				try (TreeWalk treeWalk = TreeWalk.forPath(repository, path, commit.getTree())) {
+					if (treeWalk == null) {
+						return "";
+					}
+					ObjectLoader loader = repository.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB);
+					BlobUtils.Head head = BlobUtils.readHead(loader, BlobUtils.SNIFF_LENGTH);
+					if (head.isBinary()) {
+						head.close();
+						return "";
+					}
+					// Decoded exactly as when it was indexed, so the offsets match.
+					return BlobUtils.toString(BlobUtils.openReader(head, encodings), loader.getSize(), maxLength);
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				logger.warn(MessageFormat.format("Cannot read {0} at {1} for highlighting", path, commitId), e);
+				return "";
+			}
+		}
+	}
+
+	/**
+	 * A reported ref update.
+	 */
+	private static class RefUpdate {
+		final String repositoryName;
+		final String refName;
+		final ObjectId oldId;
+		final ObjectId newId;
+
+		RefUpdate(String repositoryName, String refName, ObjectId oldId, ObjectId newId) {
+			this.repositoryName = repositoryName;
+			this.refName = refName;
+			this.oldId = oldId;
+			this.newId = newId;
+		}
+
+		@Override
+		public String toString() {
+			return refName + ' ' + (oldId == null ? ObjectId.zeroId() : oldId).abbreviate(8).name() + ".."
+					+ (newId == null ? ObjectId.zeroId() : newId).abbreviate(8).name();
+		}
+	}
+
 	/**
 	 * Simple class to track the results of an index update.
 	 */
@@ -1196,24 +2361,206 @@ public class LuceneService implements Runnable {
 	}
 
 	/**
-	 * Custom subclass of MultiReader to identify the source index for a given doc id. This would not be necessary of there was a public method to
-	 * obtain this information.
-	 *
+	 * Collects the top hits of a search, in parallel over the slices of the index if the searcher has an executor. Searching stops when the
+	 * timeout has elapsed; the hits collected until then are kept.
+	 */
+	private static class TopDocsCollectorManager implements CollectorManager<TimeLimitedCollector, TopDocs> {
+
+		private final int numHits;
+		/** Hit to collect after, or {@code null}. */
+		private final ScoreDoc after;
+		/** Timeout in milliseconds; 0 if none. */
+		private final long timeout;
+		/** Start of the search, in ticks of {@link TimeLimitingCollector#getGlobalCounter()}. */
+		private final long baseline = TimeLimitingCollector.getGlobalCounter().get();
+
+		volatile boolean timedOut;
+
+		TopDocsCollectorManager(int numHits, ScoreDoc after, long timeout) {
+			this.numHits = Math.max(1, numHits);
+			this.after = after;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public TimeLimitedCollector newCollector() throws IOException {
+			return new TimeLimitedCollector(TopScoreDocCollector.create(numHits, after), timeout, baseline);
+		}
+
+		@Override
+		public TopDocs reduce(Collection<TimeLimitedCollector> collectors) throws IOException {
+			TopDocs[] topDocs = new TopDocs[collectors.size()];
+			int i = 0;
+			for (TimeLimitedCollector collector : collectors) {
+				topDocs[i++] = collector.topDocs.topDocs();
+				timedOut |= collector.timedOut;
+			}
+			return TopDocs.merge(numHits, topDocs);
+		}
+	}
+
+	/**
+	 * A collector that stops collecting when its time is up, without throwing away the hits collected so far.
+	 */
+	private static class TimeLimitedCollector extends FilterCollector {
+
+		final TopScoreDocCollector topDocs;
+
+		volatile boolean timedOut;
+
+		TimeLimitedCollector(TopScoreDocCollector topDocs, long timeout, long baseline) {
+			super(timeout > 0 ? limit(topDocs, timeout, baseline) : topDocs);
+			this.topDocs = topDocs;
+		}
+
+		private static Collector limit(Collector collector, long timeout, long baseline) {
+			TimeLimitingCollector limited = new TimeLimitingCollector(collector, TimeLimitingCollector.getGlobalCounter(), timeout);
+			limited.setBaseline(baseline);
+			return limited;
+		}
+
+		@Override
+		public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+			LeafCollector leafCollector;
+			try {
+				leafCollector = super.getLeafCollector(context);
+			} catch (TimeExceededException e) {
+				timedOut = true;
+				throw new CollectionTerminatedException();
+			}
+			return new FilterLeafCollector(leafCollector) {
+
+				@Override
+				public void collect(int doc) throws IOException {
+					try {
+						super.collect(doc);
+					} catch (TimeExceededException e) {
+						// Skips the rest of this segment; the following ones are skipped in getLeafCollector().
+						timedOut = true;
+						throw new CollectionTerminatedException();
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * A searcher over the indexes of several repositories. It holds on to the searchers acquired from the repositories' {@link SearcherManager}s
+	 * until it is no longer referenced, and is replaced once any of them has been refreshed.
 	 */
-	private class MultiSourceReader extends MultiReader {
+	private class MultiRepositorySearcher {
+
+		/** Composite reader over the indexes of all repositories. */
+		private final IndexReader reader;
+
+		private final String[] repositories;
+		private final SearcherManager[] managers;
+		private final IndexSearcher[] acquired;
+		/** Doc id bases of the repository indexes in the composite reader. */
+		private final int[] starts;
+		/** Identifies the state of all repository indexes. */
+		final long version;
+		/** Initially one for the creator. */
+		private final AtomicInteger refCount = new AtomicInteger(1);
+
+		MultiRepositorySearcher(String[] repositories) throws IOException {
+			this.repositories = repositories;
+			this.managers = new SearcherManager[repositories.length];
+			this.acquired = new IndexSearcher[repositories.length];
+			this.starts = new int[repositories.length + 1];
+			IndexReader[] readers = new IndexReader[repositories.length];
+			try {
+				for (int i = 0; i < repositories.length; i++) {
+					managers[i] = getSearcherManager(repositories[i]);
+					acquired[i] = managers[i].acquire();
+					readers[i] = acquired[i].getIndexReader();
+					starts[i + 1] = starts[i] + readers[i].maxDoc();
+				}
+				// The MultiReader holds its own references on the repository readers.
+				reader = new MultiReader(readers, false);
+				version = getVersion(reader);
+			} catch (IOException | RuntimeException e) {
+				releaseSearchers();
+				throw e;
+			}
+		}
+
+		/**
+		 * Creates a searcher for one search. Searchers are cheap, and are not shared so that each search uses the current search executor, with
+		 * which the segments of all repositories are searched in parallel.
+		 *
+		 * @return the searcher
+		 */
+		IndexSearcher newSearcher() {
+			return new IndexSearcher(reader, getSearchExecutor());
+		}
 
-		MultiSourceReader(IndexReader[] readers) throws IOException {
-			super(readers, false);
+		/**
+		 * Gets the repository a document belongs to.
+		 *
+		 * @param docId
+		 *            of the document in the composite reader
+		 * @return the repository name
+		 */
+		String getRepository(int docId) {
+			return repositories[ReaderUtil.subIndex(docId, starts)];
 		}
 
-		int getSourceIndex(int docId) {
-			int index = -1;
+		boolean contains(String repository) {
+			return Arrays.binarySearch(repositories, repository) >= 0;
+		}
+
+		/**
+		 * Determines whether all repository indexes are still searched in their current state.
+		 */
+		boolean isCurrent() {
+			for (int i = 0; i < repositories.length; i++) {
+				if (searchers.get(repositories[i]) != managers[i]) {
+					return false;
+				}
+				try {
+					IndexSearcher current = managers[i].acquire();
+					try {
+						if (current != acquired[i]) {
+							return false;
+						}
+					} finally {
+						managers[i].release(current);
+					}
+				} catch (IOException | AlreadyClosedException e) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void incRef() {
+			refCount.incrementAndGet();
+		}
+
+		void decRef() {
+			if (refCount.decrementAndGet() > 0) {
+				return;
+			}
 			try {
-				index = super.readerIndex(docId);
-			} catch (Exception e) {
-				logger.error("Error getting source index", e);
+				reader.close();
+			} catch (IOException e) {
+				logger.error("Failed to close multi-repository Lucene reader", e);
+			}
+			releaseSearchers();
+		}
+
+		private void releaseSearchers() {
+			for (int i = 0; i < acquired.length; i++) {
+				if (acquired[i] != null) {
+					try {
+						managers[i].release(acquired[i]);
+					} catch (IOException | AlreadyClosedException e) {
+						logger.error(MessageFormat.format("Failed to release {0} Lucene searcher", repositories[i]), e);
+					}
+					acquired[i] = null;
+				}
 			}
-			return index;
 		}
 	}
 }
@@ -16,18 +16,30 @@
 package com.gitblit.servlet;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -36,15 +48,16 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.tika.Tika;
+import org.apache.tika.mime.MediaType;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.FileMode;
-import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
-import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.util.IO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,9 +66,11 @@ import com.gitblit.Keys;
 import com.gitblit.manager.IRepositoryManager;
 import com.gitblit.manager.IRuntimeManager;
 import com.gitblit.models.PathModel;
+import com.gitblit.utils.BlobUtils;
 import com.gitblit.utils.ByteFormat;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.MarkdownUtils;
+import com.gitblit.utils.RepositoryNameCache;
 import com.gitblit.utils.StringUtils;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -71,12 +86,26 @@ public class RawServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
 
+	/** Maximum number of ranges served for one request; the whole blob is sent for more. */
+	private static final int MAX_RANGES = 16;
+
+	private static final Map<String, String> QUICK_CONTENT_TYPES = new HashMap<>();
+
+	static {
+		QUICK_CONTENT_TYPES.put("html", "text/html");
+		QUICK_CONTENT_TYPES.put("htm", "text/html");
+		QUICK_CONTENT_TYPES.put("xml", "application/xml");
+		QUICK_CONTENT_TYPES.put("json", "application/json");
+	}
+
 	private transient Logger logger = LoggerFactory.getLogger(RawServlet.class);
 
 	private final IRuntimeManager runtimeManager;
 
 	private final IRepositoryManager repositoryManager;
 
+	private final transient ContentTypeResolver contentTypes = new ContentTypeResolver();
+
 	@Inject
 	public RawServlet(IRuntimeManager runtimeManager, IRepositoryManager repositoryManager) {
 
@@ -162,14 +191,21 @@ public class RawServlet extends HttpServlet {
 		}
 
 		// determine repository and resource from url
-		String repository = path;
 		Repository r = null;
-		int terminator = repository.length();
-		do {
-			repository = repository.substring(0, terminator);
+		String repository = RepositoryNameCache.instance().getRepositoryName(path, repositoryManager::getRepositoryList);
+		if (repository != null) {
 			r = repositoryManager.getRepository(repository, false);
-			terminator = repository.lastIndexOf('/');
-		} while (r == null && terminator > -1);
+		}
+		if (r == null) {
+			// not a known repository name; probe ever shorter prefixes
+			repository = path;
+			int terminator = repository.length();
+			do {
+				repository = repository.substring(0, terminator);
+				r = repositoryManager.getRepository(repository, false);
+				terminator = repository.lastIndexOf('/');
+			} while (r == null && terminator > -1);
+		}
 
 		ServletContext context = request.getSession().getServletContext();
 
@@ -210,12 +246,6 @@ public class RawServlet extends HttpServlet {
 				return;
 			}
 
-			Map<String, String> quickContentTypes = new HashMap<>();
-			quickContentTypes.put("html", "text/html");
-			quickContentTypes.put("htm", "text/html");
-			quickContentTypes.put("xml", "application/xml");
-			quickContentTypes.put("json", "application/json");
-
 			List<PathModel> pathEntries = JGitUtils.getFilesInPath(r, requestedPath, commit);
 			if (pathEntries.isEmpty()) {
 				// requested a specific resource
@@ -224,6 +254,16 @@ public class RawServlet extends HttpServlet {
 				}
 				String file = StringUtils.getLastPathElement(requestedPath);
 				try {
+					ObjectId blobId = getBlobId(r, commit, requestedPath);
+					if (blobId == null) {
+						notFound(response, requestedPath, branch);
+						return;
+					}
+					// a full commit id always denotes the same content
+					boolean immutable = ObjectId.isId(branch);
+					if (isNotModified(request, response, blobId, JGitUtils.getCommitDate(commit), immutable)) {
+						return;
+					}
 
 					String ext = StringUtils.getFileExtension(file).toLowerCase();
 					// We can't parse out an extension for classic "dotfiles", so make a general assumption that
@@ -233,7 +273,7 @@ public class RawServlet extends HttpServlet {
 					// to start with a dot but also include an extension, process the extension normally.
 					// This logic covers .gitattributes, .gitignore, .zshrc, etc., but does not cover .mongorc.js, .zshrc.bak
 					boolean isExtensionlessDotfile = file.charAt(0) == '.' && (file.length() == 1 || file.indexOf('.', 1) < 0);
-					String contentType = isExtensionlessDotfile ? "text/plain" : quickContentTypes.get(ext);
+					String contentType = isExtensionlessDotfile ? "text/plain" : QUICK_CONTENT_TYPES.get(ext);
 
 					if (contentType == null) {
 						List<String> exts = runtimeManager.getSettings().getStrings(Keys.web.prettyPrintExtensions);
@@ -242,8 +282,7 @@ public class RawServlet extends HttpServlet {
 							contentType = "text/plain";
 						} else {
 							// query Tika for the content type
-							Tika tika = new Tika();
-							contentType = tika.detect(file);
+							contentType = contentTypes.detect(r, blobId, file, ext);
 						}
 					}
 
@@ -259,24 +298,15 @@ public class RawServlet extends HttpServlet {
 
 					if (isTextType(contentType) || isTextDataType(contentType)) {
 
-						// load, interpret, and serve text content as UTF-8
-						String[] encodings = runtimeManager.getSettings().getStrings(Keys.web.blobEncodings).toArray(new String[0]);
-						String content = JGitUtils.getStringContent(r, commit.getTree(), requestedPath, encodings);
-						if (content == null) {
+						// interpret and serve text content as UTF-8
+						if (!streamText(request, response, r, blobId, contentType)) {
 							logger.error("RawServlet Failed to load {} {} {}", repository, commit.getName(), path);
 							notFound(response, requestedPath, branch);
-							return;
 						}
 
-						byte[] bytes = content.getBytes(Constants.ENCODING);
-						setContentType(response, contentType);
-						response.setContentLength(bytes.length);
-						ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-						sendContent(response, JGitUtils.getCommitDate(commit), is);
-
 					} else {
 						// stream binary content directly from the repository
-						if (!streamFromRepo(request, response, r, commit, requestedPath)) {
+						if (!streamFromRepo(request, response, r, blobId, requestedPath)) {
 							logger.error("RawServlet Failed to stream {} {} {}", repository, commit.getName(), path);
 							notFound(response, requestedPath, branch);
 						}
@@ -410,58 +440,383 @@ public class RawServlet extends HttpServlet {
 		}
 	}
 
-	protected boolean streamFromRepo(HttpServletRequest request, HttpServletResponse response, Repository repository, RevCommit commit,
+	/**
+	 * Finds the blob at a path in a commit.
+	 *
+	 * @param repository
+	 * @param commit
+	 * @param requestedPath
+	 * @return the id of the blob, or null if there is no file at that path
+	 * @throws IOException
+	 */
+	protected ObjectId getBlobId(Repository repository, RevCommit commit, String requestedPath) throws IOException {
+		try (TreeWalk tw = TreeWalk.forPath(repository, requestedPath, commit.getTree())) {
+			if (tw == null) {
+				return null;
+			}
+			FileMode mode = tw.getFileMode(0);
+			if (mode == FileMode.GITLINK || mode == FileMode.TREE) {
+				return null;
+			}
+			return tw.getObjectId(0);
+		}
+	}
+
+	/**
+	 * Sets the cache validators for a blob and evaluates the conditional headers of the request against them. The content of a blob is
+	 * determined by its id, which therefore serves as strong entity tag. The commit date serves as modification date only if the blob was
+	 * addressed by a commit id: a branch may be reset to an older commit with different content.
+	 *
+	 * @param request
+	 * @param response
+	 * @param blobId
+	 *            of the requested blob
+	 * @param lastModified
+	 *            commit date; ignored unless {@code immutable}
+	 * @param immutable
+	 *            whether the blob was addressed by a commit id rather than a branch, so that the response may be cached indefinitely
+	 * @return true, if the client's copy is current and a 304 Not Modified status has been set
+	 */
+	protected boolean isNotModified(HttpServletRequest request, HttpServletResponse response, ObjectId blobId, Date lastModified,
+			boolean immutable) {
+		String etag = getEntityTag(blobId);
+		response.setHeader("ETag", etag);
+		if (!immutable) {
+			lastModified = null;
+		} else if (lastModified != null) {
+			response.setDateHeader("Last-Modified", lastModified.getTime());
+		}
+		// a branch may move at any time, so have clients revalidate; that's cheap now
+		response.setHeader("Cache-Control", immutable ? "private, max-age=31536000, immutable" : "private, no-cache");
+
+		boolean notModified;
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			// If-Modified-Since is ignored when If-None-Match is present (RFC 7232, 3.3)
+			notModified = matchesEntityTag(ifNoneMatch, etag, true);
+		} else {
+			long since = getDateHeader(request, "If-Modified-Since");
+			// HTTP dates have a resolution of one second
+			notModified = lastModified != null && since >= 0 && lastModified.getTime() / 1000 <= since / 1000;
+		}
+		if (notModified) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		}
+		return notModified;
+	}
+
+	/**
+	 * @param blobId
+	 * @return the strong entity tag of a blob, including the quotes
+	 */
+	protected static String getEntityTag(ObjectId blobId) {
+		return '"' + blobId.name() + '"';
+	}
+
+	/**
+	 * Checks whether the value of an If-Match, If-None-Match, or If-Range header matches an entity tag.
+	 *
+	 * @param header
+	 *            value; "*" or a list of entity tags
+	 * @param etag
+	 *            strong entity tag, including the quotes
+	 * @param weak
+	 *            whether to use the weak comparison, which ignores the W/ prefix
+	 * @return true, if the header matches
+	 */
+	protected static boolean matchesEntityTag(String header, String etag, boolean weak) {
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (weak && tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the value of a date header, ignoring malformed values.
+	 *
+	 * @param request
+	 * @param name
+	 * @return the date in milliseconds since the epoch, or -1 if the header is missing or malformed
+	 */
+	protected static long getDateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Streams a text blob as UTF-8. Blobs already in UTF-8 (which includes ASCII) are copied as they are; others are transcoded while
+	 * streaming. The character set is determined from the whole blob if JGit caches it anyway, and from its beginning otherwise. Range
+	 * requests are supported for blobs that need no transcoding.
+	 *
+	 * @param request
+	 * @param response
+	 * @param repository
+	 * @param id
+	 *            of the blob
+	 * @param contentType
+	 *            of the blob
+	 * @return true, if the blob was served; false, if it cannot be loaded
+	 * @throws IOException
+	 */
+	protected boolean streamText(HttpServletRequest request, HttpServletResponse response, Repository repository, ObjectId id,
+			String contentType) throws IOException {
+		ObjectLoader loader = openBlob(repository, id);
+		if (loader == null) {
+			return false;
+		}
+		String[] encodings = runtimeManager.getSettings().getStrings(Keys.web.blobEncodings).toArray(new String[0]);
+		BlobUtils.Head head = BlobUtils.readHead(loader, BlobUtils.SNIFF_LENGTH);
+		Charset charset = head.detectCharset(encodings);
+		setContentType(response, contentType);
+		if (StandardCharsets.UTF_8.equals(charset)) {
+			// nothing to transcode; send the bytes of the blob as they are
+			head.close();
+			sendBlob(request, response, id, loader);
+		} else {
+			try (Reader reader = BlobUtils.openReader(head, charset)) {
+				Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+				char[] buffer = new char[8192];
+				int len;
+				while ((len = reader.read(buffer)) > -1) {
+					writer.write(buffer, 0, len);
+				}
+				writer.flush();
+			}
+		}
+		response.flushBuffer();
+		return true;
+	}
+
+	/**
+	 * Streams a binary blob as download. Range requests are supported.
+	 *
+	 * @param request
+	 * @param response
+	 * @param repository
+	 * @param id
+	 *            of the blob
+	 * @param requestedPath
+	 *            of the blob, for the file name
+	 * @return true, if the blob was served; false, if it cannot be loaded
+	 * @throws IOException
+	 */
+	protected boolean streamFromRepo(HttpServletRequest request, HttpServletResponse response, Repository repository, ObjectId id,
 			String requestedPath) throws IOException {
 
-		boolean served = false;
-		// RevWalk is disposed in finally
-		@SuppressWarnings("resource")
-		RevWalk rw = new RevWalk(repository);
-		TreeWalk tw = new TreeWalk(repository);
+		ObjectLoader ldr = openBlob(repository, id);
+		if (ldr == null) {
+			return false;
+		}
+		String filename = StringUtils.getLastPathElement(requestedPath);
+		try {
+			String userAgent = request.getHeader("User-Agent");
+			if (userAgent != null && userAgent.indexOf("MSIE 5.5") > -1) {
+				response.setHeader("Content-Disposition", "filename=\"" + URLEncoder.encode(filename, Constants.ENCODING) + "\"");
+			} else if (userAgent != null && userAgent.indexOf("MSIE") > -1) {
+				response.setHeader("Content-Disposition", "attachment; filename=\"" + URLEncoder.encode(filename, Constants.ENCODING) + "\"");
+			} else {
+				response.setHeader("Content-Disposition", "attachment; filename=\""
+						+ new String(filename.getBytes(Constants.ENCODING), "latin1") + "\"");
+			}
+		} catch (UnsupportedEncodingException e) {
+			response.setHeader("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+		}
+
+		setContentType(response, "application/octet-stream");
+		sendBlob(request, response, id, ldr);
+
+		response.flushBuffer();
+		return true;
+	}
+
+	/**
+	 * Opens a blob.
+	 *
+	 * @param repository
+	 * @param id
+	 *            of the blob
+	 * @return the loader, or null if the object is missing or not a blob
+	 * @throws IOException
+	 */
+	private ObjectLoader openBlob(Repository repository, ObjectId id) throws IOException {
 		try {
-			tw.reset();
-			tw.addTree(commit.getTree());
-			PathFilter f = PathFilter.create(requestedPath);
-			tw.setFilter(f);
-			tw.setRecursive(true);
-			MutableObjectId id = new MutableObjectId();
-			ObjectReader reader = tw.getObjectReader();
-			while (tw.next()) {
-				FileMode mode = tw.getFileMode(0);
-				if (mode == FileMode.GITLINK || mode == FileMode.TREE) {
+			return repository.open(id, org.eclipse.jgit.lib.Constants.OBJ_BLOB);
+		} catch (MissingObjectException | IncorrectObjectTypeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Sends the content of a blob, or the byte ranges of it requested by a Range header (RFC 7233). The content type must have been set.
+	 * <p>
+	 * Blobs small enough to be cached by JGit are sliced directly. Large blobs are streamed, and the bytes before a range are skipped rather
+	 * than sent; the stream is only reopened if a range starts before the end of the previous one.
+	 * </p>
+	 *
+	 * @param request
+	 * @param response
+	 * @param id
+	 *            of the blob
+	 * @param loader
+	 *            for the blob
+	 * @throws IOException
+	 */
+	protected void sendBlob(HttpServletRequest request, HttpServletResponse response, ObjectId id, ObjectLoader loader) throws IOException {
+		long size = loader.getSize();
+		response.setHeader("Accept-Ranges", "bytes");
+		List<long[]> ranges = getRanges(request, getEntityTag(id), size);
+		if (ranges == null) {
+			response.setContentLengthLong(size);
+			loader.copyTo(response.getOutputStream());
+			return;
+		}
+		if (ranges.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + size);
+			response.setContentLength(0);
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		List<byte[]> partHeaders = null;
+		byte[] trailer = null;
+		if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+			response.setContentLengthLong(range[1] - range[0] + 1);
+		} else {
+			String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + id.name();
+			String partType = response.getContentType();
+			partHeaders = new ArrayList<>(ranges.size());
+			trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			long length = trailer.length;
+			for (long[] range : ranges) {
+				byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + partType + "\r\nContent-Range: bytes " + range[0] + "-"
+						+ range[1] + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+				partHeaders.add(partHeader);
+				length += partHeader.length + range[1] - range[0] + 1;
+			}
+			response.setContentType("multipart/byteranges; boundary=" + boundary);
+			response.setContentLengthLong(length);
+		}
+
+		OutputStream out = response.getOutputStream();
+		byte[] cached = loader.isLarge() ? null : loader.getCachedBytes();
+		InputStream in = null;
+		long position = 0;
+		try {
+			for (int i = 0; i < ranges.size(); i++) {
+				long[] range = ranges.get(i);
+				if (partHeaders != null) {
+					out.write(partHeaders.get(i));
+				}
+				if (cached != null) {
+					out.write(cached, (int) range[0], (int) (range[1] - range[0] + 1));
 					continue;
 				}
-				tw.getObjectId(id, 0);
-
-				String filename = StringUtils.getLastPathElement(requestedPath);
-				try {
-					String userAgent = request.getHeader("User-Agent");
-					if (userAgent != null && userAgent.indexOf("MSIE 5.5") > -1) {
-						response.setHeader("Content-Disposition", "filename=\"" + URLEncoder.encode(filename, Constants.ENCODING) + "\"");
-					} else if (userAgent != null && userAgent.indexOf("MSIE") > -1) {
-						response.setHeader("Content-Disposition", "attachment; filename=\"" + URLEncoder.encode(filename, Constants.ENCODING) + "\"");
-					} else {
-						response.setHeader("Content-Disposition", "attachment; filename=\""
-								+ new String(filename.getBytes(Constants.ENCODING), "latin1") + "\"");
+				if (in == null || range[0] < position) {
+					if (in != null) {
+						in.close();
 					}
-				} catch (UnsupportedEncodingException e) {
-					response.setHeader("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+					in = loader.openStream();
+					position = 0;
 				}
-
-				long len = reader.getObjectSize(id, org.eclipse.jgit.lib.Constants.OBJ_BLOB);
-				setContentType(response, "application/octet-stream");
-				response.setIntHeader("Content-Length", (int) len);
-				ObjectLoader ldr = repository.open(id);
-				ldr.copyTo(response.getOutputStream());
-				served = true;
+				IO.skipFully(in, range[0] - position);
+				copy(in, out, range[1] - range[0] + 1);
+				position = range[1] + 1;
+			}
+			if (trailer != null) {
+				out.write(trailer);
 			}
 		} finally {
-			tw.close();
-			rw.dispose();
+			if (in != null) {
+				in.close();
+			}
 		}
+	}
 
-		response.flushBuffer();
-		return served;
+	/**
+	 * Parses the Range header of a request.
+	 *
+	 * @param request
+	 * @param etag
+	 *            strong entity tag of the content, to evaluate If-Range against
+	 * @param size
+	 *            of the content
+	 * @return the satisfiable ranges as inclusive first and last byte positions, in the requested order; an empty list if none is
+	 *         satisfiable; or null if the whole content is to be sent
+	 */
+	protected static List<long[]> getRanges(HttpServletRequest request, String etag, long size) {
+		String header = request.getHeader("Range");
+		if (header == null || !"GET".equals(request.getMethod()) || !header.startsWith("bytes=")) {
+			return null;
+		}
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange != null && !matchesEntityTag(ifRange, etag, false)) {
+			// the client's copy is outdated, or validated by date only; send everything
+			return null;
+		}
+		String[] specs = header.substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<>(specs.length);
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash < 0) {
+					return null;
+				}
+				long first;
+				long last;
+				if (dash == 0) {
+					// suffix range: the last n bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix < 0) {
+						return null;
+					} else if (suffix == 0 || size == 0) {
+						continue;
+					}
+					first = Math.max(0, size - suffix);
+					last = size - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+					if (last < first) {
+						return null;
+					} else if (first >= size) {
+						continue;
+					}
+					last = Math.min(last, size - 1);
+				}
+				ranges.add(new long[] { first, last });
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return ranges;
+	}
+
+	private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (length > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if (n < 0) {
+				throw new EOFException();
+			}
+			out.write(buffer, 0, n);
+			length -= n;
+		}
 	}
 
 	protected void sendContent(HttpServletResponse response, Date date, InputStream is) throws ServletException, IOException {
@@ -490,6 +845,78 @@ public class RawServlet extends HttpServlet {
 		response.getWriter().write(content);
 	}
 
+	/**
+	 * Determines content types with Tika, which is expensive to create and is therefore shared. Types are looked up by file extension and
+	 * cached per extension. If the name doesn't tell, the first few KB of the blob are examined, and the result is remembered per blob.
+	 */
+	static class ContentTypeResolver {
+
+		private static final Tika TIKA = new Tika();
+
+		private static final String UNKNOWN = MediaType.OCTET_STREAM.toString();
+
+		/** Number of bytes examined to detect the content type of a blob. */
+		private static final int SNIFF_LENGTH = 4096;
+
+		/** Extensions come from URLs; bound the cache so that requests for made-up names can't fill it. */
+		private static final int MAX_EXTENSIONS = 1024;
+
+		private static final int MAX_BLOBS = 4096;
+
+		private final Map<String, String> byExtension = new ConcurrentHashMap<>();
+
+		private final Map<ObjectId, String> byBlob = Collections.synchronizedMap(new LinkedHashMap<ObjectId, String>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ObjectId, String> eldest) {
+				return size() > MAX_BLOBS;
+			}
+		});
+
+		/**
+		 * Determines the content type of a blob.
+		 *
+		 * @param repository
+		 *            containing the blob
+		 * @param blobId
+		 *            of the blob
+		 * @param fileName
+		 *            of the blob
+		 * @param ext
+		 *            lower-case extension of the file name; may be empty
+		 * @return the content type; application/octet-stream if unknown
+		 * @throws IOException
+		 */
+		String detect(Repository repository, ObjectId blobId, String fileName, String ext) throws IOException {
+			String type;
+			if (ext.isEmpty()) {
+				type = TIKA.detect(fileName);
+			} else {
+				type = byExtension.get(ext);
+				if (type == null) {
+					type = TIKA.detect("file." + ext);
+					if (byExtension.size() < MAX_EXTENSIONS) {
+						byExtension.put(ext, type);
+					}
+				}
+			}
+			if (!UNKNOWN.equals(type)) {
+				return type;
+			}
+			// content types of blobs never change
+			type = byBlob.get(blobId);
+			if (type == null) {
+				BlobUtils.Head head = BlobUtils.readHead(repository.open(blobId, org.eclipse.jgit.lib.Constants.OBJ_BLOB), SNIFF_LENGTH);
+				head.close();
+				type = TIKA.detect(Arrays.copyOf(head.bytes, head.length));
+				byBlob.put(blobId.copy(), type);
+			}
+			return type;
+		}
+	}
+
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		processRequest(request, response);
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2026 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+/**
+ * Utilities to look at blob contents without reading them fully into memory.
+ * <p>
+ * Binary detection only looks at the first {@link #SNIFF_LENGTH} bytes of a blob. So does character set detection for large blobs; blobs
+ * small enough to be cached by JGit are checked completely. Text is then streamed through a {@link Reader}.
+ * </p>
+ */
+public final class BlobUtils {
+
+	/** Number of bytes looked at to decide whether a blob is binary, and which character set it uses. Same as git's. */
+	public static final int SNIFF_LENGTH = 8000;
+
+	private BlobUtils() {
+		// No instantiation
+	}
+
+	/**
+	 * The beginning of a blob, and a stream over all of it.
+	 */
+	public static final class Head {
+
+		/** The first bytes of the blob. */
+		public final byte[] bytes;
+
+		/** Number of valid bytes in {@link #bytes}. */
+		public final int length;
+
+		/** Whether the blob is shorter than or exactly as long as {@link #length}. */
+		public final boolean complete;
+
+		/** Number of valid bytes in {@link #bytes} including those beyond {@link #length}; all of the blob if it was cached anyway. */
+		private final int available;
+
+		private final InputStream rest;
+
+		Head(byte[] bytes, int length, boolean complete, int available, InputStream rest) {
+			this.bytes = bytes;
+			this.length = length;
+			this.complete = complete;
+			this.available = available;
+			this.rest = rest;
+		}
+
+		/**
+		 * @return whether the blob appears to contain binary data
+		 */
+		public boolean isBinary() {
+			return RawText.isBinary(bytes, length);
+		}
+
+		/**
+		 * Determines the character set of the blob, see {@link BlobUtils#detectCharset(byte[], int, boolean, String...)}. If the blob was
+		 * cached, all of it is checked; otherwise, only the head.
+		 *
+		 * @param encodings
+		 *            additional character sets to try
+		 * @return the first character set that can decode the bytes
+		 */
+		public Charset detectCharset(String... encodings) {
+			return BlobUtils.detectCharset(bytes, available, complete || available > length, encodings);
+		}
+
+		/**
+		 * Gets a stream over the whole blob, including the head. Must be called at most once.
+		 *
+		 * @return the stream, which must be closed
+		 */
+		public InputStream openStream() {
+			return new SequenceInputStream(new ByteArrayInputStream(bytes, 0, length), rest);
+		}
+
+		/**
+		 * Closes the underlying stream, for when {@link #openStream()} is not used.
+		 */
+		public void close() {
+			try {
+				rest.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Reads the first {@code maxLength} bytes of a blob.
+	 *
+	 * @param loader
+	 *            for the blob
+	 * @param maxLength
+	 *            maximum number of bytes to read
+	 * @return the head of the blob; must be closed or its stream be opened and closed
+	 * @throws IOException
+	 */
+	public static Head readHead(ObjectLoader loader, int maxLength) throws IOException {
+		if (!loader.isLarge()) {
+			// Cached anyway; no need to stream it.
+			byte[] data = loader.getCachedBytes();
+			int length = Math.min(data.length, maxLength);
+			return new Head(data, length, length == data.length, data.length, new ByteArrayInputStream(data, length, data.length - length));
+		}
+		InputStream in = loader.openStream();
+		try {
+			byte[] head = new byte[maxLength];
+			int length = 0;
+			int n;
+			while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+				length += n;
+			}
+			return new Head(head, length, length < head.length, length, in);
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Determines the character set of a text blob from its first bytes. UTF-8 is tried first, then the given encodings, and finally the
+	 * platform default, as in {@link StringUtils#decodeString(byte[], String...)}.
+	 *
+	 * @param head
+	 *            first bytes of the blob
+	 * @param length
+	 *            number of valid bytes in {@code head}
+	 * @param complete
+	 *            whether {@code head} contains the whole blob
+	 * @param encodings
+	 *            additional character sets to try
+	 * @return the first character set that can decode the bytes
+	 */
+	public static Charset detectCharset(byte[] head, int length, boolean complete, String... encodings) {
+		Set<String> candidates = new LinkedHashSet<String>();
+		candidates.add(StandardCharsets.UTF_8.name());
+		if (encodings != null) {
+			for (String encoding : encodings) {
+				if (!StringUtils.isEmpty(encoding)) {
+					candidates.add(encoding);
+				}
+			}
+		}
+		candidates.add(Charset.defaultCharset().name());
+		// Whole cached blobs may be large; decode them in chunks
+		CharBuffer out = CharBuffer.allocate(Math.min(length, 8192) + 1);
+		for (String candidate : candidates) {
+			Charset charset;
+			try {
+				charset = Charset.forName(candidate);
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+			CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT);
+			ByteBuffer in = ByteBuffer.wrap(head, 0, length);
+			CoderResult result;
+			do {
+				out.clear();
+				// If the head is incomplete, a multi-byte character may be cut off at the end; that's not an error.
+				result = decoder.decode(in, out, complete);
+			} while (result.isOverflow());
+			if (!result.isError()) {
+				return charset;
+			}
+		}
+		return Charset.defaultCharset();
+	}
+
+	/**
+	 * Opens a reader over a text blob.
+	 *
+	 * @param head
+	 *            of the blob; consumed
+	 * @param encodings
+	 *            additional character sets to try, see {@link #detectCharset(byte[], int, boolean, String...)}
+	 * @return a reader, which must be closed
+	 */
+	public static Reader openReader(Head head, String... encodings) {
+		return openReader(head, head.detectCharset(encodings));
+	}
+
+	/**
+	 * Opens a reader over a text blob in a known character set. Malformed input is replaced.
+	 *
+	 * @param head
+	 *            of the blob; consumed
+	 * @param charset
+	 *            of the blob
+	 * @return a reader, which must be closed
+	 */
+	public static Reader openReader(Head head, Charset charset) {
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return new InputStreamReader(head.openStream(), decoder);
+	}
+
+	/**
+	 * Reads all of a reader into a string, and closes the reader.
+	 *
+	 * @param reader
+	 *            to read
+	 * @param sizeHint
+	 *            expected number of characters
+	 * @return the string
+	 * @throws IOException
+	 */
+	public static String toString(Reader reader, long sizeHint) throws IOException {
+		return toString(reader, sizeHint, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads at most {@code maxLength} characters of a reader into a string, and closes the reader.
+	 *
+	 * @param reader
+	 *            to read
+	 * @param sizeHint
+	 *            expected number of characters
+	 * @param maxLength
+	 *            maximum number of characters to read
+	 * @return the string
+	 * @throws IOException
+	 */
+	public static String toString(Reader reader, long sizeHint, int maxLength) throws IOException {
+		try {
+			StringBuilder b = new StringBuilder((int) Math.min(Math.max(sizeHint, 16), Math.min(maxLength, Integer.MAX_VALUE - 16)));
+			char[] buffer = new char[8192];
+			int n;
+			while (b.length() < maxLength && (n = reader.read(buffer, 0, Math.min(buffer.length, maxLength - b.length()))) > 0) {
+				b.append(buffer, 0, n);
+			}
+			return b.toString();
+		} finally {
+			reader.close();
+		}
+	}
+}
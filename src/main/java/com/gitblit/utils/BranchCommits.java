@@ -0,0 +1,256 @@
+/*
+ * Copyright 2026 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.NB;
+
+import com.gitblit.models.RefModel;
+
+/**
+ * Immutable snapshot of the cached commits of one repository:branch for the {@link CommitCache}.
+ * <p>
+ * The commits are stored column-wise in primitive arrays instead of as {@link com.gitblit.models.RepositoryCommit}s with full
+ * {@link RevCommit}s: the object ids are packed into an {@code int[]}, and the commit times into another {@code int[]}. Ref decorations are kept
+ * only for the few commits that have any. That's 24 bytes per commit, instead of several hundred bytes for a parsed {@link RevCommit} with
+ * its raw buffer. Everything else is read from the commit itself when it is rehydrated.
+ * </p>
+ * <p>
+ * Commits are in the order produced by the RevWalk, i.e., newest first.
+ * </p>
+ */
+final class BranchCommits {
+
+	/** Number of ints in an object id. */
+	private static final int ID_WORDS = Constants.OBJECT_ID_LENGTH / 4;
+
+	/** Estimated heap cost of a commit: id words and commit time. */
+	private static final int BYTES_PER_COMMIT = Constants.OBJECT_ID_LENGTH + 4;
+
+	/** Estimated heap cost of a ref decoration entry, excluding the shared {@link RefModel}s themselves. */
+	private static final int BYTES_PER_REF_ENTRY = 64;
+
+	/** Tip of the branch at the time the snapshot was made. */
+	final ObjectId tip;
+
+	/** Cutoff date (in milliseconds) the snapshot was made for. */
+	final long cutoff;
+
+	/** Rough estimate of the heap used by this snapshot. */
+	final long estimatedSize;
+
+	/** Logical time of the last access; used for LRU eviction. */
+	volatile long lastAccess;
+
+	/**
+	 * Whether the snapshot is known to reflect the repository. Snapshots restored from disk are not verified until their tip has been checked
+	 * and their ref decorations have been recomputed.
+	 */
+	final boolean verified;
+
+	private final int size;
+
+	private final int[] ids;
+
+	private final int[] commitTimes;
+
+	private final Map<Integer, List<RefModel>> refs;
+
+	private BranchCommits(ObjectId tip, long cutoff, int size, int[] ids, int[] commitTimes, Map<Integer, List<RefModel>> refs,
+			boolean verified) {
+		this.tip = tip;
+		this.cutoff = cutoff;
+		this.size = size;
+		this.ids = ids;
+		this.commitTimes = commitTimes;
+		this.refs = refs.isEmpty() ? Collections.<Integer, List<RefModel>> emptyMap() : refs;
+		this.verified = verified;
+		this.estimatedSize = 64 + (long) size * BYTES_PER_COMMIT + (long) this.refs.size() * BYTES_PER_REF_ENTRY;
+	}
+
+	boolean isCurrent(ObjectId currentTip, Date cacheCutoffDate) {
+		return cutoff == cacheCutoffDate.getTime() && tip.equals(currentTip);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	ObjectId getId(int i) {
+		return ObjectId.fromRaw(ids, i * ID_WORDS);
+	}
+
+	/**
+	 * @param i
+	 *            index of the commit
+	 * @return the commit time in seconds since the epoch
+	 */
+	int getCommitTime(int i) {
+		return commitTimes[i];
+	}
+
+	List<RefModel> getRefs(int i) {
+		return refs.get(i);
+	}
+
+	/**
+	 * Writes the snapshot, except its ref decorations.
+	 *
+	 * @param out
+	 *            to write to
+	 * @throws IOException
+	 */
+	void write(DataOutput out) throws IOException {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		tip.copyRawTo(raw, 0);
+		out.write(raw);
+		out.writeLong(cutoff);
+		out.writeInt(size);
+		for (int i = 0; i < size * ID_WORDS; i++) {
+			out.writeInt(ids[i]);
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeInt(commitTimes[i]);
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #write(DataOutput)}. The snapshot is not {@link #verified}.
+	 *
+	 * @param in
+	 *            to read from
+	 * @return the snapshot
+	 * @throws IOException
+	 *             if the data cannot be read or is corrupt
+	 */
+	static BranchCommits read(DataInput in) throws IOException {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		in.readFully(raw);
+		ObjectId tip = ObjectId.fromRaw(raw);
+		long cutoff = in.readLong();
+		int size = in.readInt();
+		if (size < 0 || size > Integer.MAX_VALUE / ID_WORDS) {
+			throw new IOException("Invalid number of commits: " + size);
+		}
+		int[] ids = new int[size * ID_WORDS];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = in.readInt();
+		}
+		int[] commitTimes = new int[size];
+		for (int i = 0; i < size; i++) {
+			commitTimes[i] = in.readInt();
+		}
+		return new BranchCommits(tip, cutoff, size, ids, commitTimes, Collections.<Integer, List<RefModel>> emptyMap(), false);
+	}
+
+	/**
+	 * Collects commits for a new {@link BranchCommits} snapshot.
+	 */
+	static final class Builder {
+
+		private final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+
+		private int size;
+
+		private int[] ids;
+
+		private int[] commitTimes;
+
+		private final Map<Integer, List<RefModel>> refs = new HashMap<>();
+
+		Builder(int expectedSize) {
+			int capacity = Math.max(expectedSize, 16);
+			ids = new int[capacity * ID_WORDS];
+			commitTimes = new int[capacity];
+		}
+
+		/**
+		 * Appends a commit.
+		 *
+		 * @param commit
+		 *            parsed commit
+		 * @param commitRefs
+		 *            refs pointing to the commit, may be {@code null}
+		 */
+		void add(RevCommit commit, List<RefModel> commitRefs) {
+			ensureCapacity();
+			commit.copyRawTo(raw, 0);
+			int offset = size * ID_WORDS;
+			for (int i = 0; i < ID_WORDS; i++) {
+				ids[offset + i] = NB.decodeInt32(raw, i * 4);
+			}
+			commitTimes[size] = commit.getCommitTime();
+			if (commitRefs != null && !commitRefs.isEmpty()) {
+				refs.put(size, commitRefs);
+			}
+			size++;
+		}
+
+		/**
+		 * Appends all commits of an existing snapshot whose commit time is not before the given date.
+		 *
+		 * @param other
+		 *            snapshot to copy from
+		 * @param sinceMillis
+		 *            minimum commit time in milliseconds
+		 * @param allRefs
+		 *            if not {@code null}, ref decorations are taken from this map instead of from {@code other}
+		 */
+		void addAll(BranchCommits other, long sinceMillis, Map<ObjectId, List<RefModel>> allRefs) {
+			for (int i = 0; i < other.size; i++) {
+				if (other.commitTimes[i] * 1000L < sinceMillis) {
+					continue;
+				}
+				ensureCapacity();
+				System.arraycopy(other.ids, i * ID_WORDS, ids, size * ID_WORDS, ID_WORDS);
+				commitTimes[size] = other.commitTimes[i];
+				List<RefModel> commitRefs = allRefs != null ? allRefs.get(other.getId(i)) : other.refs.get(i);
+				if (commitRefs != null && !commitRefs.isEmpty()) {
+					refs.put(size, commitRefs);
+				}
+				size++;
+			}
+		}
+
+		BranchCommits build(ObjectId tip, long cutoff) {
+			return new BranchCommits(tip, cutoff, size, Arrays.copyOf(ids, size * ID_WORDS), Arrays.copyOf(commitTimes, size), refs, true);
+		}
+
+		private void ensureCapacity() {
+			if (size == commitTimes.length) {
+				int capacity = size * 2;
+				ids = Arrays.copyOf(ids, capacity * ID_WORDS);
+				commitTimes = Arrays.copyOf(commitTimes, capacity);
+			}
+		}
+	}
+}
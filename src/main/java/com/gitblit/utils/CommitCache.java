@@ -15,39 +15,130 @@
  */
 package com.gitblit.utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.gitblit.models.RefModel;
 import com.gitblit.models.RepositoryCommit;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * Caches repository commits for re-use in the dashboard and activity pages.
+ * <p>
+ * Each repository:branch is represented by an immutable {@link BranchCommits} snapshot. Readers just fetch the current snapshot from a
+ * {@link ConcurrentHashMap}; they never lock. Updates build a new snapshot and swap it in. To avoid several threads walking the same branch at
+ * the same time, updates are serialized per repository:branch through a set of striped locks.
+ * </p>
+ * <p>
+ * Snapshots store commits in a compact columnar form. Only the commits actually requested are rehydrated into {@link RepositoryCommit}s. The
+ * most recently rehydrated commits are kept parsed, within a small fixed budget, so that repeated page views don't re-read them.
+ * </p>
+ * <p>
+ * Each request checks the branch tip to find out whether the cached entry is still current. Branch updates reported via
+ * {@link #refUpdated(String, Repository, String)} are applied ahead of time, so that this check usually finds the entry current.
+ * </p>
+ * <p>
+ * The cache can be bounded by a maximum number of repository:branch entries and by an estimated heap size. If a limit is exceeded, the least
+ * recently used entries are evicted.
+ * </p>
  *
  * @author James Moger
  *
  */
 public class CommitCache {
 
+	/** Marks a file written by {@link #writeTo(File)}: "GBCC". */
+	private static final int PERSISTENCE_MAGIC = 0x47424343;
+
+	private static final int PERSISTENCE_VERSION = 2;
+
+	/** Number of lock stripes for cache updates; must be a power of two. */
+	private static final int LOCK_STRIPES = 64;
+
+	/** Maximum estimated heap size of {@link #parsedCommits}: 16MB. */
+	private static final long MAX_PARSED_COMMITS_SIZE = 16L * 1024 * 1024;
+
+	/** Estimated heap cost of a parsed commit in addition to its raw buffer. */
+	private static final int PARSED_COMMIT_OVERHEAD = 128;
+
 	private static final CommitCache instance;
 
 	protected final Logger logger = LoggerFactory.getLogger(getClass());
 
-	protected final Map<String, ObjectCache<List<RepositoryCommit>>> cache;
+	/** Snapshots per repository, then per branch. All keys are lower-cased. */
+	protected final ConcurrentMap<String, ConcurrentMap<String, BranchCommits>> cache;
+
+	private final Object[] locks;
+
+	/**
+	 * Recently rehydrated commits, so that repeated requests for the same snapshot don't read and inflate every commit again. Bounded by the
+	 * estimated heap size of the commits; lookups don't lock.
+	 */
+	private final Cache<ObjectId, RevCommit> parsedCommits = CacheBuilder.newBuilder().maximumWeight(MAX_PARSED_COMMITS_SIZE)
+			.weigher((ObjectId id, RevCommit commit) -> estimateSize(commit)).build();
+
+	/** Serializes evictions; there's no point in several threads scanning the cache at the same time. */
+	private final Object evictionLock = new Object();
+
+	/**
+	 * Running number of cached repository:branch entries, so that {@link #evict()} needn't scan the cache to find out that it fits. Corrected
+	 * whenever the cache is scanned.
+	 */
+	private final AtomicInteger entryCount = new AtomicInteger();
+
+	/** Running estimated heap size of all entries; see {@link #entryCount}. */
+	private final AtomicLong entrySize = new AtomicLong();
 
-	protected int cacheDays = -1;
+	/** Logical clock for LRU bookkeeping. */
+	private final AtomicLong clock = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	protected volatile int cacheDays = -1;
+
+	/** Maximum number of repository:branch entries; &lt;= 0 means unlimited. */
+	protected volatile int maxEntries;
+
+	/** Maximum estimated heap size of all entries in bytes; &lt;= 0 means unlimited. */
+	protected volatile long maxBytes;
 
 	public static CommitCache instance() {
 		return instance;
@@ -58,9 +149,11 @@ public class CommitCache {
 	}
 
 	protected CommitCache() {
-		// Using a ConcurrentHashMap of lists and then manipulating those lists and even handing them out is not thread-safe at all.
-		// cache = new ConcurrentHashMap<String, ObjectCache<List<RepositoryCommit>>>();
-		cache = new HashMap<>();
+		cache = new ConcurrentHashMap<>();
+		locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
 	}
 
 	/**
@@ -90,14 +183,75 @@ public class CommitCache {
 		clear();
 	}
 
+	/**
+	 * Sets the memory budget of the cache. If the cache grows beyond either limit, the least recently used repository:branch entries are
+	 * evicted.
+	 *
+	 * @param maxEntries
+	 *            maximum number of cached repository:branch entries; &lt;= 0 for no limit
+	 * @param maxBytes
+	 *            maximum estimated heap size of the cached commits in bytes; &lt;= 0 for no limit
+	 */
+	public void setCacheLimits(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * @return the number of requests within the cache window that were answered from a current cache entry.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of requests within the cache window that needed to walk the repository.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of repository:branch entries evicted because of the memory budget.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the current number of cached repository:branch entries.
+	 */
+	public int getEntryCount() {
+		int count = 0;
+		for (Map<String, BranchCommits> repoCache : cache.values()) {
+			count += repoCache.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the estimated heap size of all cached commits in bytes.
+	 */
+	public long getEstimatedSize() {
+		long size = 0;
+		for (Map<String, BranchCommits> repoCache : cache.values()) {
+			for (BranchCommits commits : repoCache.values()) {
+				size += commits.estimatedSize;
+			}
+		}
+		return size;
+	}
+
 	/**
 	 * Clears the entire commit cache.
 	 *
 	 */
 	public void clear() {
-		synchronized (cache) {
-			cache.clear();
-		}
+		cache.clear();
+		parsedCommits.invalidateAll();
+		entryCount.set(0);
+		entrySize.set(0);
 	}
 
 	/**
@@ -107,11 +261,12 @@ public class CommitCache {
 	 */
 	public void clear(String repositoryName) {
 		String repoKey = repositoryName.toLowerCase();
-		boolean hadEntries = false;
-		synchronized (cache) {
-			hadEntries = cache.remove(repoKey) != null;
-		}
+		Map<String, BranchCommits> repoCache = cache.remove(repoKey);
+		boolean hadEntries = repoCache != null;
 		if (hadEntries) {
+			for (BranchCommits commits : repoCache.values()) {
+				replaced(commits, null);
+			}
 			logger.info(MessageFormat.format("{0} commit cache cleared", repositoryName));
 		}
 	}
@@ -125,18 +280,112 @@ public class CommitCache {
 	public void clear(String repositoryName, String branch) {
 		String repoKey = repositoryName.toLowerCase();
 		boolean hadEntries = false;
-		synchronized (cache) {
-			ObjectCache<List<RepositoryCommit>> repoCache = cache.get(repoKey);
-			if (repoCache != null) {
-				List<RepositoryCommit> commits = repoCache.remove(branch.toLowerCase());
-				hadEntries = !ArrayUtils.isEmpty(commits);
-			}
+		Map<String, BranchCommits> repoCache = cache.get(repoKey);
+		if (repoCache != null) {
+			BranchCommits commits = repoCache.remove(branch.toLowerCase());
+			replaced(commits, null);
+			hadEntries = commits != null && !commits.isEmpty();
 		}
 		if (hadEntries) {
 			logger.info(MessageFormat.format("{0}:{1} commit cache cleared", repositoryName, branch));
 		}
 	}
 
+	/**
+	 * Writes the cache to a file, so that it can be restored by {@link #readFrom(File)} after a restart. Ref decorations are not written; they
+	 * are recomputed when restored entries are validated.
+	 *
+	 * @param file
+	 *            to write to; replaced atomically
+	 * @throws IOException
+	 */
+	public void writeTo(File file) throws IOException {
+		if (cacheDays <= 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		// Take a consistent copy first.
+		Map<String, Map<String, BranchCommits>> entries = new HashMap<>();
+		int count = 0;
+		for (Map.Entry<String, ConcurrentMap<String, BranchCommits>> repoEntry : cache.entrySet()) {
+			Map<String, BranchCommits> branches = new HashMap<>(repoEntry.getValue());
+			if (branches.isEmpty()) {
+				continue;
+			}
+			entries.put(repoEntry.getKey(), branches);
+			count += branches.size();
+		}
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+			out.writeInt(PERSISTENCE_MAGIC);
+			out.writeInt(PERSISTENCE_VERSION);
+			out.writeInt(cacheDays);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Map<String, BranchCommits>> repoEntry : entries.entrySet()) {
+				out.writeUTF(repoEntry.getKey());
+				out.writeInt(repoEntry.getValue().size());
+				for (Map.Entry<String, BranchCommits> branchEntry : repoEntry.getValue().entrySet()) {
+					out.writeUTF(branchEntry.getKey());
+					branchEntry.getValue().write(out);
+				}
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info(MessageFormat.format("wrote {0} commit cache entries to {1} in {2} msecs", count, file,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+	}
+
+	/**
+	 * Restores entries written by {@link #writeTo(File)}. Restored entries are validated against the repository on first use: if the branch
+	 * tip hasn't moved, only the ref decorations are recomputed; if it has, only the new commits are walked. Entries already in the cache are
+	 * kept. Nothing is restored if the file was written with a different number of cache days.
+	 *
+	 * @param file
+	 *            to read from
+	 * @return the number of restored entries
+	 */
+	public int readFrom(File file) {
+		if (cacheDays <= 0 || !file.isFile()) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		int count = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+			if (in.readInt() != PERSISTENCE_MAGIC || in.readInt() != PERSISTENCE_VERSION) {
+				logger.warn(MessageFormat.format("ignoring commit cache file {0} with unknown format", file));
+				return 0;
+			}
+			if (in.readInt() != cacheDays) {
+				logger.info(MessageFormat.format("ignoring commit cache file {0}: different number of cache days", file));
+				return 0;
+			}
+			int repoCount = in.readInt();
+			for (int i = 0; i < repoCount; i++) {
+				String repoKey = in.readUTF();
+				int branchCount = in.readInt();
+				ConcurrentMap<String, BranchCommits> repoCache = cache.computeIfAbsent(repoKey, k -> new ConcurrentHashMap<>());
+				for (int j = 0; j < branchCount; j++) {
+					String branchKey = in.readUTF();
+					BranchCommits commits = BranchCommits.read(in);
+					commits.lastAccess = clock.incrementAndGet();
+					if (repoCache.putIfAbsent(branchKey, commits) == null) {
+						replaced(null, commits);
+						count++;
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.warn(MessageFormat.format("cannot read commit cache file {0}", file), e);
+		}
+		evict();
+		logger.info(MessageFormat.format("restored {0} commit cache entries from {1} in {2} msecs", count, file,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		return count;
+	}
+
 	/**
 	 * Get all commits for the specified repository:branch that are in the cache.
 	 *
@@ -166,56 +415,11 @@ public class CommitCache {
 		List<RepositoryCommit> list;
 		if (cacheDays > 0 && (sinceDate.getTime() >= cacheCutoffDate.getTime())) {
 			// request fits within the cache window
-			String repoKey = repositoryName.toLowerCase();
-			String branchKey = branch.toLowerCase();
-
-			RevCommit tip = JGitUtils.getCommit(repository, branch);
-			Date tipDate = JGitUtils.getCommitDate(tip);
-
-			ObjectCache<List<RepositoryCommit>> repoCache;
-			synchronized (cache) {
-				repoCache = cache.get(repoKey);
-				if (repoCache == null) {
-					repoCache = new ObjectCache<>();
-					cache.put(repoKey, repoCache);
-				}
-			}
-			synchronized (repoCache) {
-				List<RepositoryCommit> commits;
-				if (!repoCache.hasCurrent(branchKey, tipDate)) {
-					commits = repoCache.getObject(branchKey);
-					if (ArrayUtils.isEmpty(commits)) {
-						// we don't have any cached commits for this branch, reload
-						commits = get(repositoryName, repository, branch, cacheCutoffDate);
-						repoCache.updateObject(branchKey, tipDate, commits);
-						logger.debug(MessageFormat.format("parsed {0} commits from {1}:{2} since {3,date,yyyy-MM-dd} in {4} msecs", commits.size(),
-								repositoryName, branch, cacheCutoffDate, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
-					} else {
-						// incrementally update cache since the last cached commit
-						ObjectId sinceCommit = commits.get(0).getId();
-						List<RepositoryCommit> incremental = get(repositoryName, repository, branch, sinceCommit);
-						logger.info(MessageFormat.format("incrementally added {0} commits to cache for {1}:{2} in {3} msecs", incremental.size(),
-								repositoryName, branch, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
-						incremental.addAll(commits);
-						repoCache.updateObject(branchKey, tipDate, incremental);
-						commits = incremental;
-					}
-				} else {
-					// cache is current
-					commits = repoCache.getObject(branchKey);
-					// evict older commits outside the cache window
-					commits = reduce(commits, cacheCutoffDate);
-					// update cache
-					repoCache.updateObject(branchKey, tipDate, commits);
-				}
-				if (sinceDate.equals(cacheCutoffDate)) {
-					// Mustn't hand out the cached list; that's not thread-safe
-					list = new ArrayList<>(commits);
-				} else {
-					// reduce the commits to those since the specified date
-					list = reduce(commits, sinceDate);
-				}
+			BranchCommits snapshot = getSnapshot(repositoryName, repository, branch, cacheCutoffDate);
+			if (snapshot == null) {
+				return Collections.emptyList();
 			}
+			list = rehydrate(repositoryName, repository, branch, snapshot, sinceDate);
 			logger.debug(MessageFormat.format("retrieved {0} commits from cache of {1}:{2} since {3,date,yyyy-MM-dd} in {4} msecs",
 					list.size(), repositoryName, branch, sinceDate, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
 		} else {
@@ -228,39 +432,347 @@ public class CommitCache {
 	}
 
 	/**
-	 * Returns a list of commits for the specified repository branch.
+	 * Brings the cache for the specified repository:branch up to date without returning any commits. Meant for populating the cache in the
+	 * background.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param branch
+	 * @return the number of cached commits for the repository:branch
+	 */
+	public int load(String repositoryName, Repository repository, String branch) {
+		if (cacheDays <= 0) {
+			return 0;
+		}
+		BranchCommits snapshot = getSnapshot(repositoryName, repository, branch, getCutoffDate());
+		return snapshot != null ? snapshot.size() : 0;
+	}
+
+	/**
+	 * Gets the current snapshot for a repository:branch, updating it if necessary.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param branch
+	 * @param cacheCutoffDate
+	 * @return the snapshot, or {@code null} if the branch doesn't exist
+	 */
+	private BranchCommits getSnapshot(String repositoryName, Repository repository, String branch, Date cacheCutoffDate) {
+		String repoKey = repositoryName.toLowerCase();
+		String branchKey = branch.toLowerCase();
+
+		ConcurrentMap<String, BranchCommits> repoCache = cache.get(repoKey);
+		if (repoCache == null) {
+			repoCache = cache.computeIfAbsent(repoKey, k -> new ConcurrentHashMap<>());
+		}
+		BranchCommits snapshot = repoCache.get(branchKey);
+		// Always check the tip: not every change of a branch is reported through refUpdated(). This is a plain ref read.
+		ObjectId tip = snapshot != null ? getTip(repository, branch) : null;
+		if (snapshot != null && snapshot.verified && tip != null && snapshot.isCurrent(tip, cacheCutoffDate)) {
+			hits.increment();
+		} else {
+			misses.increment();
+			snapshot = update(repositoryName, repository, branch, repoCache, cacheCutoffDate);
+			if (snapshot == null) {
+				// branch doesn't exist (anymore)
+				return null;
+			}
+		}
+		snapshot.lastAccess = clock.incrementAndGet();
+		return snapshot;
+	}
+
+	/**
+	 * Tells the cache that a branch has been changed. If the cache has an entry for the repository:branch, it is brought up to date: if the
+	 * branch was fast-forwarded, the new commits are added; if it was rewritten, the entry is reloaded; and if it was deleted, the entry is
+	 * removed. Meant to be called from a ref update listener in the background, so that the next request can be served without walking the
+	 * repository. Updates that are not reported are picked up by the tip check on the next request.
 	 *
 	 * @param repositoryName
 	 * @param repository
 	 * @param branch
+	 *            full name of the branch
+	 */
+	public void refUpdated(String repositoryName, Repository repository, String branch) {
+		if (cacheDays <= 0) {
+			return;
+		}
+		String repoKey = repositoryName.toLowerCase();
+		String branchKey = branch.toLowerCase();
+		ConcurrentMap<String, BranchCommits> repoCache = cache.get(repoKey);
+		if (repoCache == null) {
+			return;
+		}
+		// Check under the lock: an update running concurrently may not have seen the new tip.
+		synchronized (getLock(repoKey, branchKey)) {
+			if (repoCache.containsKey(branchKey)) {
+				update(repositoryName, repository, branch, repoCache, getCutoffDate());
+			}
+		}
+	}
+
+	/**
+	 * Brings the snapshot for a repository:branch up to date and swaps the new snapshot into the cache. Concurrent updates of the same
+	 * repository:branch are serialized; readers are never blocked.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param branch
+	 * @param repoCache
+	 *            the branch map of the repository
+	 * @param cacheCutoffDate
+	 * @return the current snapshot, or {@code null} if the branch doesn't exist
+	 */
+	private BranchCommits update(String repositoryName, Repository repository, String branch, ConcurrentMap<String, BranchCommits> repoCache,
+			Date cacheCutoffDate) {
+		String branchKey = branch.toLowerCase();
+		synchronized (getLock(repositoryName.toLowerCase(), branchKey)) {
+			// Resolve the tip only now, while holding the lock, so that we can't miss a concurrent refUpdated().
+			ObjectId tip = getTip(repository, branch);
+			if (tip == null) {
+				replaced(repoCache.remove(branchKey), null);
+				return null;
+			}
+			BranchCommits current = repoCache.get(branchKey);
+			if (current != null && current.verified && current.isCurrent(tip, cacheCutoffDate)) {
+				// Somebody else updated it while we were waiting for the lock.
+				return current;
+			}
+			long start = System.nanoTime();
+			// Resolving all refs can be expensive in repositories with many refs; do so only if needed.
+			Map<ObjectId, List<RefModel>> allRefs = null;
+			BranchCommits.Builder builder;
+			BranchCommits base = null;
+			if (current != null && current.tip.equals(tip)) {
+				// cache is current, but the cutoff date has moved or the entry was restored from disk: evict older commits outside the
+				// cache window, and recompute the ref decorations if needed
+				builder = new BranchCommits.Builder(current.size());
+				base = current;
+				if (!current.verified) {
+					allRefs = JGitUtils.getAllRefs(repository, false);
+				}
+			} else if (current != null && isFastForward(repository, current.tip, tip)) {
+				// incrementally update cache since the last cached commit
+				List<RevCommit> incremental = JGitUtils.getRevLog(repository, current.tip.getName(), tip.getName());
+				allRefs = JGitUtils.getAllRefs(repository, false);
+				builder = newBuilder(allRefs, incremental, cacheCutoffDate, current.size());
+				base = current;
+				logger.info(MessageFormat.format("incrementally added {0} commits to cache for {1}:{2} in {3} msecs", incremental.size(),
+						repositoryName, branch, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			} else {
+				// we don't have any cached commits for this branch, or the branch was rewritten: reload
+				List<RevCommit> revLog = JGitUtils.getRevLog(repository, tip.getName(), cacheCutoffDate);
+				allRefs = JGitUtils.getAllRefs(repository, false);
+				builder = newBuilder(allRefs, revLog, cacheCutoffDate, 0);
+				logger.debug(MessageFormat.format("parsed {0} commits from {1}:{2} since {3,date,yyyy-MM-dd} in {4} msecs", revLog.size(),
+						repositoryName, branch, cacheCutoffDate, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			}
+			if (base != null) {
+				builder.addAll(base, cacheCutoffDate.getTime(), base.verified ? null : allRefs);
+			}
+			BranchCommits updated = builder.build(tip.copy(), cacheCutoffDate.getTime());
+			updated.lastAccess = current != null ? current.lastAccess : clock.incrementAndGet();
+			replaced(repoCache.put(branchKey, updated), updated);
+			evict();
+			return updated;
+		}
+	}
+
+	/**
+	 * Resolves the tip of a branch by reading its ref only; no object is read.
+	 *
+	 * @param repository
+	 * @param branch
+	 * @return the id of the tip commit, or {@code null} if the branch doesn't exist
+	 */
+	private ObjectId getTip(Repository repository, String branch) {
+		try {
+			Ref ref = repository.findRef(branch);
+			if (ref == null) {
+				return null;
+			}
+			// Branches point to commits; use the peeled id only if it is known already, since peeling would read the object.
+			return ref.getPeeledObjectId() != null ? ref.getPeeledObjectId() : ref.getObjectId();
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("failed to resolve {0} in {1}", branch, repository.getDirectory()), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Determines whether a branch was fast-forwarded from {@code oldTip} to {@code newTip}.
+	 */
+	private boolean isFastForward(Repository repository, ObjectId oldTip, ObjectId newTip) {
+		try (RevWalk walk = new RevWalk(repository)) {
+			walk.setRevFilter(RevFilter.MERGE_BASE);
+			walk.markStart(walk.parseCommit(oldTip));
+			walk.markStart(walk.parseCommit(newTip));
+			RevCommit mergeBase = walk.next();
+			return mergeBase != null && mergeBase.equals(oldTip);
+		} catch (IOException e) {
+			// Old tip may be gone after a rewrite and gc.
+			return false;
+		}
+	}
+
+	/**
+	 * Evicts least recently used entries until the cache fits again into its memory budget.
+	 */
+	private void evict() {
+		int entryLimit = maxEntries;
+		long byteLimit = maxBytes;
+		if (fits(entryCount.get(), entrySize.get(), entryLimit, byteLimit)) {
+			return;
+		}
+		synchronized (evictionLock) {
+			int expectedCount = entryCount.get();
+			long expectedSize = entrySize.get();
+			List<Eviction> candidates = new ArrayList<>(expectedCount);
+			long size = 0;
+			for (Map.Entry<String, ConcurrentMap<String, BranchCommits>> repoEntry : cache.entrySet()) {
+				for (Map.Entry<String, BranchCommits> branchEntry : repoEntry.getValue().entrySet()) {
+					candidates.add(new Eviction(repoEntry.getKey(), repoEntry.getValue(), branchEntry.getKey(), branchEntry.getValue()));
+					size += branchEntry.getValue().estimatedSize;
+				}
+			}
+			int count = candidates.size();
+			// Correct the running totals, which may drift if an update races with clearing a repository.
+			entryCount.addAndGet(count - expectedCount);
+			entrySize.addAndGet(size - expectedSize);
+			if (fits(count, size, entryLimit, byteLimit)) {
+				return;
+			}
+			Collections.sort(candidates);
+			for (Eviction candidate : candidates) {
+				if (fits(count, size, entryLimit, byteLimit)) {
+					break;
+				}
+				if (candidate.repoCache.remove(candidate.branchKey, candidate.commits)) {
+					replaced(candidate.commits, null);
+					evictions.increment();
+					logger.debug(MessageFormat.format("evicted {0}:{1} from commit cache", candidate.repoKey, candidate.branchKey));
+				}
+				count--;
+				size -= candidate.commits.estimatedSize;
+			}
+		}
+	}
+
+	private static boolean fits(int count, long size, int entryLimit, long byteLimit) {
+		return (entryLimit <= 0 || count <= entryLimit) && (byteLimit <= 0 || size <= byteLimit);
+	}
+
+	/**
+	 * Updates the running totals after an entry has been added, replaced or removed.
+	 *
+	 * @param previous
+	 *            the entry that was removed or replaced, or {@code null}
+	 * @param current
+	 *            the entry that was added, or {@code null}
+	 */
+	private void replaced(BranchCommits previous, BranchCommits current) {
+		if (previous != null) {
+			entryCount.decrementAndGet();
+			entrySize.addAndGet(-previous.estimatedSize);
+		}
+		if (current != null) {
+			entryCount.incrementAndGet();
+			entrySize.addAndGet(current.estimatedSize);
+		}
+	}
+
+	private BranchCommits.Builder newBuilder(Map<ObjectId, List<RefModel>> allRefs, List<RevCommit> revLog, Date cacheCutoffDate, int additional) {
+		BranchCommits.Builder builder = new BranchCommits.Builder(revLog.size() + additional);
+		long cutoff = cacheCutoffDate.getTime();
+		for (RevCommit commit : revLog) {
+			if (commit.getCommitTime() * 1000L >= cutoff) {
+				builder.add(commit, allRefs.get(commit));
+			}
+		}
+		return builder;
+	}
+
+	/**
+	 * Turns the compact cached commits of a snapshot since the given date into {@link RepositoryCommit}s.
+	 *
+	 * @param repositoryName
+	 * @param repository
+	 * @param branch
+	 * @param snapshot
 	 * @param sinceDate
 	 * @return a list of commits
 	 */
-	protected List<RepositoryCommit> get(String repositoryName, Repository repository, String branch, Date sinceDate) {
-		Map<ObjectId, List<RefModel>> allRefs = JGitUtils.getAllRefs(repository, false);
-		List<RevCommit> revLog = JGitUtils.getRevLog(repository, branch, sinceDate);
-		List<RepositoryCommit> commits = new ArrayList<RepositoryCommit>(revLog.size());
-		for (RevCommit commit : revLog) {
-			RepositoryCommit commitModel = new RepositoryCommit(repositoryName, branch, commit);
-			List<RefModel> commitRefs = allRefs.get(commitModel.getId());
-			commitModel.setRefs(commitRefs);
-			commits.add(commitModel);
+	private List<RepositoryCommit> rehydrate(String repositoryName, Repository repository, String branch, BranchCommits snapshot, Date sinceDate) {
+		long since = sinceDate.getTime();
+		List<RepositoryCommit> commits = new ArrayList<>(snapshot.size());
+		try (RevWalk walk = new RevWalk(repository)) {
+			for (int i = 0; i < snapshot.size(); i++) {
+				if (snapshot.getCommitTime(i) * 1000L < since) {
+					continue;
+				}
+				RepositoryCommit commit = rehydrate(repositoryName, branch, walk, snapshot, i);
+				if (commit != null) {
+					commits.add(commit);
+				}
+			}
 		}
 		return commits;
 	}
 
+	private RepositoryCommit rehydrate(String repositoryName, String branch, RevWalk walk, BranchCommits snapshot, int i) {
+		ObjectId id = snapshot.getId(i);
+		try {
+			RepositoryCommit commit = new RepositoryCommit(repositoryName, branch, parseCommit(walk.getObjectReader(), id));
+			commit.setRefs(snapshot.getRefs(i));
+			return commit;
+		} catch (IOException e) {
+			// Can happen only if the branch was rewritten and the old commit was garbage collected. The next tip check will fix the snapshot.
+			logger.warn(MessageFormat.format("cannot load cached commit {0} of {1}:{2}", id.getName(), repositoryName, branch), e);
+			return null;
+		}
+	}
+
 	/**
-	 * Returns a list of commits for the specified repository branch since the specified commit.
+	 * Gets a parsed commit, from {@link #parsedCommits} if possible. Commits are parsed stand-alone rather than through a shared
+	 * {@link RevWalk}, so that a cached commit doesn't keep its parents, and their raw buffers, reachable.
+	 *
+	 * @param reader
+	 * @param id
+	 *            of the commit
+	 * @return the parsed commit with its body
+	 * @throws IOException
+	 */
+	private RevCommit parseCommit(ObjectReader reader, ObjectId id) throws IOException {
+		RevCommit commit = parsedCommits.getIfPresent(id);
+		if (commit == null) {
+			commit = RevCommit.parse(reader.open(id, Constants.OBJ_COMMIT).getCachedBytes());
+			parsedCommits.put(commit, commit);
+		}
+		return commit;
+	}
+
+	private static int estimateSize(RevCommit commit) {
+		return PARSED_COMMIT_OVERHEAD + commit.getRawBuffer().length;
+	}
+
+	private Object getLock(String repoKey, String branchKey) {
+		int h = repoKey.hashCode() * 31 + branchKey.hashCode();
+		h ^= (h >>> 16);
+		return locks[h & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Returns a list of commits for the specified repository branch.
 	 *
 	 * @param repositoryName
 	 * @param repository
 	 * @param branch
-	 * @param sinceCommit
+	 * @param sinceDate
 	 * @return a list of commits
 	 */
-	protected List<RepositoryCommit> get(String repositoryName, Repository repository, String branch, ObjectId sinceCommit) {
+	protected List<RepositoryCommit> get(String repositoryName, Repository repository, String branch, Date sinceDate) {
 		Map<ObjectId, List<RefModel>> allRefs = JGitUtils.getAllRefs(repository, false);
-		List<RevCommit> revLog = JGitUtils.getRevLog(repository, sinceCommit.getName(), branch);
+		List<RevCommit> revLog = JGitUtils.getRevLog(repository, branch, sinceDate);
 		List<RepositoryCommit> commits = new ArrayList<RepositoryCommit>(revLog.size());
 		for (RevCommit commit : revLog) {
 			RepositoryCommit commitModel = new RepositoryCommit(repositoryName, branch, commit);
@@ -272,19 +784,31 @@ public class CommitCache {
 	}
 
 	/**
-	 * Reduces the list of commits to those since the specified date.
-	 *
-	 * @param commits
-	 * @param sinceDate
-	 * @return  a list of commits
+	 * An eviction candidate; orders by last access, oldest first.
 	 */
-	protected List<RepositoryCommit> reduce(List<RepositoryCommit> commits, Date sinceDate) {
-		List<RepositoryCommit> filtered = new ArrayList<RepositoryCommit>(commits.size());
-		for (RepositoryCommit commit : commits) {
-			if (commit.getCommitDate().compareTo(sinceDate) >= 0) {
-				filtered.add(commit);
-			}
+	private static final class Eviction implements Comparable<Eviction> {
+
+		final String repoKey;
+
+		final ConcurrentMap<String, BranchCommits> repoCache;
+
+		final String branchKey;
+
+		final BranchCommits commits;
+
+		final long lastAccess;
+
+		Eviction(String repoKey, ConcurrentMap<String, BranchCommits> repoCache, String branchKey, BranchCommits commits) {
+			this.repoKey = repoKey;
+			this.repoCache = repoCache;
+			this.branchKey = branchKey;
+			this.commits = commits;
+			this.lastAccess = commits.lastAccess;
+		}
+
+		@Override
+		public int compareTo(Eviction other) {
+			return Long.compare(lastAccess, other.lastAccess);
 		}
-		return filtered;
 	}
 }
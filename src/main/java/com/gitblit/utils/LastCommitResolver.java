@@ -0,0 +1,191 @@
+/*
+ * Copyright 2026 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Finds the commits that last changed a set of paths, walking the history only until all paths have been found.
+ * <p>
+ * Each commit is compared to its parent with a tree filter for the paths not found yet, so that subtrees not containing any of them are not
+ * even read. The filter is rebuilt whenever the number of remaining paths has halved. Merge commits are skipped; a path changed by a merge is
+ * attributed to the commit that changed it on one of the merged branches.
+ * </p>
+ * <p>
+ * Usage:
+ * </p>
+ *
+ * <pre>
+ * LastCommitResolver resolver = new LastCommitResolver(reader, tip, paths);
+ * RevCommit commit;
+ * while ((commit = resolver.next()) != null) {
+ * 	for (String path : resolver.getPaths()) {
+ * 		// commit is the last commit that changed path
+ * 	}
+ * }
+ * </pre>
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class LastCommitResolver implements AutoCloseable {
+
+	private final RevWalk revWalk;
+
+	private final TreeWalk treeWalk;
+
+	private final Set<String> remaining;
+
+	private TreeFilter filter;
+
+	/** Number of paths {@link #filter} was built for. */
+	private int filterSize;
+
+	private List<String> paths = new ArrayList<>();
+
+	/**
+	 * Creates a new resolver.
+	 *
+	 * @param reader
+	 *            to read the history with; not closed by the resolver
+	 * @param start
+	 *            commit to start the walk at
+	 * @param paths
+	 *            to find the last commits of; full paths of files, relative to the repository root
+	 * @throws IOException
+	 */
+	public LastCommitResolver(ObjectReader reader, AnyObjectId start, Collection<String> paths) throws IOException {
+		this.revWalk = new RevWalk(reader);
+		this.treeWalk = new TreeWalk(reader);
+		this.treeWalk.setRecursive(true);
+		this.remaining = new HashSet<>(paths);
+		this.remaining.remove("");
+		revWalk.markStart(revWalk.parseCommit(start));
+	}
+
+	/**
+	 * Finds the next commit that last changed some of the paths.
+	 *
+	 * @return the commit, or {@code null} if the last commits of all paths have been found, or the history has been walked completely
+	 * @throws IOException
+	 */
+	public RevCommit next() throws IOException {
+		paths = new ArrayList<>();
+		RevCommit commit;
+		while (!remaining.isEmpty() && (commit = revWalk.next()) != null) {
+			switch (commit.getParentCount()) {
+			case 0:
+				treeWalk.reset();
+				treeWalk.addTree(new EmptyTreeIterator());
+				treeWalk.addTree(commit.getTree());
+				break;
+			case 1:
+				RevCommit parent = commit.getParent(0);
+				revWalk.parseHeaders(parent);
+				treeWalk.reset(parent.getTree(), commit.getTree());
+				break;
+			default:
+				// skip merge commits
+				continue;
+			}
+			treeWalk.setFilter(getFilter());
+			while (treeWalk.next()) {
+				String path = treeWalk.getPathString();
+				if (remaining.remove(path)) {
+					paths.add(path);
+				}
+			}
+			if (!paths.isEmpty()) {
+				return commit;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the paths last changed by the commit returned by {@link #next()}.
+	 *
+	 * @return the paths
+	 */
+	public List<String> getPaths() {
+		return paths;
+	}
+
+	/**
+	 * Gets the paths whose last commits haven't been found (yet).
+	 *
+	 * @return the paths
+	 */
+	public Set<String> getRemainingPaths() {
+		return remaining;
+	}
+
+	/**
+	 * Finds the last commits of all paths at once.
+	 *
+	 * @param reader
+	 *            to read the history with
+	 * @param start
+	 *            commit to start the walk at
+	 * @param paths
+	 *            to find the last commits of
+	 * @return the last commit for each path found, in the order the commits were found
+	 * @throws IOException
+	 */
+	public static Map<String, RevCommit> resolve(ObjectReader reader, AnyObjectId start, Collection<String> paths) throws IOException {
+		Map<String, RevCommit> commits = new LinkedHashMap<>();
+		try (LastCommitResolver resolver = new LastCommitResolver(reader, start, paths)) {
+			RevCommit commit;
+			while ((commit = resolver.next()) != null) {
+				for (String path : resolver.getPaths()) {
+					commits.put(path, commit);
+				}
+			}
+		}
+		return commits;
+	}
+
+	private TreeFilter getFilter() {
+		if (filter == null || remaining.size() <= filterSize / 2) {
+			filter = AndTreeFilter.create(PathFilterGroup.createFromStrings(remaining), TreeFilter.ANY_DIFF);
+			filterSize = remaining.size();
+		}
+		return filter;
+	}
+
+	@Override
+	public void close() {
+		treeWalk.close();
+		revWalk.close();
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2026 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Finds the repository a URL path refers to, without probing the file system for each prefix of the path.
+ * <p>
+ * The names of all repositories are kept in a trie over their path segments, built from the repository list on first use. Repositories
+ * created or deleted afterwards are reported through {@link #added(String)} and {@link #removed(String)}. A lookup walks the segments of a path
+ * once and returns the longest prefix of the path that names a repository.
+ * </p>
+ * <p>
+ * Like {@link com.gitblit.manager.IRepositoryManager#getRepository(String)}, names match case-insensitively, and with or without ".git":
+ * segments are compared {@linkplain #normalize(String) normalized}.
+ * </p>
+ * <p>
+ * The cache may miss repositories that the repository list didn't know about yet; callers should fall back to probing if a lookup fails.
+ * </p>
+ */
+public class RepositoryNameCache {
+
+	private static final RepositoryNameCache instance = new RepositoryNameCache();
+
+	/** Root of the trie; null until built. Nodes are modified only while holding the monitor, but are read without it. */
+	private volatile Node root;
+
+	public static RepositoryNameCache instance() {
+		return instance;
+	}
+
+	protected RepositoryNameCache() {
+	}
+
+	/**
+	 * Finds the longest prefix of a path that names a repository.
+	 *
+	 * @param path
+	 *            repository name, optionally followed by '/' and more segments; without leading '/'
+	 * @param repositoryList
+	 *            supplies the names of all repositories if the cache has not been built yet
+	 * @return the prefix of the path naming the repository, as written in the path, or null if no known repository matches
+	 */
+	public String getRepositoryName(String path, Supplier<? extends Collection<String>> repositoryList) {
+		Node node = root;
+		if (node == null) {
+			node = build(repositoryList);
+		}
+		int matched = -1;
+		int start = 0;
+		while (start <= path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			node = node.children.get(normalize(path.substring(start, end)));
+			if (node == null) {
+				break;
+			}
+			if (node.repository) {
+				matched = end;
+			}
+			start = end + 1;
+		}
+		return matched < 0 ? null : path.substring(0, matched);
+	}
+
+	/**
+	 * Records a new repository.
+	 *
+	 * @param repositoryName
+	 */
+	public synchronized void added(String repositoryName) {
+		Node node = root;
+		if (node != null) {
+			// Otherwise it'll be in the repository list when the trie is built
+			add(node, repositoryName);
+		}
+	}
+
+	/**
+	 * Forgets a deleted repository.
+	 *
+	 * @param repositoryName
+	 */
+	public synchronized void removed(String repositoryName) {
+		Node node = root;
+		for (String segment : repositoryName.split("/")) {
+			if (node == null) {
+				return;
+			}
+			node = node.children.get(normalize(segment));
+		}
+		if (node != null) {
+			// Empty nodes are left in place; they are few, and harmless.
+			node.repository = false;
+		}
+	}
+
+	/**
+	 * Drops the cache; it'll be rebuilt from the repository list on next use.
+	 */
+	public synchronized void clear() {
+		root = null;
+	}
+
+	private synchronized Node build(Supplier<? extends Collection<String>> repositoryList) {
+		if (root == null) {
+			Node node = new Node();
+			for (String repositoryName : repositoryList.get()) {
+				add(node, repositoryName);
+			}
+			root = node;
+		}
+		return root;
+	}
+
+	private static void add(Node root, String repositoryName) {
+		Node node = root;
+		for (String segment : repositoryName.split("/")) {
+			node = node.children.computeIfAbsent(normalize(segment), k -> new Node());
+		}
+		node.repository = true;
+	}
+
+	/**
+	 * Normalizes a path segment for comparison: lower-cased, and without ".git" suffix.
+	 *
+	 * @param segment
+	 * @return the normalized segment
+	 */
+	private static String normalize(String segment) {
+		String key = segment.toLowerCase();
+		return key.endsWith(Constants.DOT_GIT_EXT) ? key.substring(0, key.length() - Constants.DOT_GIT_EXT.length()) : key;
+	}
+
+	private static class Node {
+
+		final Map<String, Node> children = new ConcurrentHashMap<>(4);
+
+		volatile boolean repository;
+	}
+}
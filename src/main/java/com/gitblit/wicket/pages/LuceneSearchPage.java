@@ -39,6 +39,7 @@ import com.gitblit.Keys;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.SearchResult;
 import com.gitblit.models.UserModel;
+import com.gitblit.service.LuceneService;
 import com.gitblit.utils.ArrayUtils;
 import com.gitblit.utils.StringUtils;
 import com.gitblit.wicket.GitBlitWebSession;
@@ -69,6 +70,7 @@ public class LuceneSearchPage extends RootPage {
 		boolean allRepos = false;
 
 		int page = 1;
+		String cursor = null;
 		int pageSize = app().settings().getInteger(Keys.web.itemsPerPage, 50);
 
 		// display user-accessible selections
@@ -87,6 +89,7 @@ public class LuceneSearchPage extends RootPage {
 			}
 
 			page = WicketUtils.getPage(params);
+			cursor = params.getString("cursor", null);
 		
 			if (params.containsKey("repositories")) {
 				String value = params.getString("repositories", "");
@@ -177,8 +180,19 @@ public class LuceneSearchPage extends RootPage {
 
 		// execute search
 		final List<SearchResult> results = new ArrayList<SearchResult>();
+		String nextCursor = null;
 		if (!ArrayUtils.isEmpty(searchRepositories) && !StringUtils.isEmpty(query)) {
-			results.addAll(app().repositories().search(query, page, pageSize, searchRepositories));
+			LuceneService lucene = LuceneService.instance();
+			if (lucene != null) {
+				// Continues from the previous page instead of collecting all hits up to this one
+				LuceneService.ResultPage resultPage = lucene.search(query, page, pageSize, cursor, searchRepositories);
+				if (resultPage != null) {
+					results.addAll(resultPage.results);
+					nextCursor = resultPage.nextCursor;
+				}
+			} else {
+				results.addAll(app().repositories().search(query, page, pageSize, searchRepositories));
+			}
 		}
 
 		// results header
@@ -257,6 +271,10 @@ public class LuceneSearchPage extends RootPage {
 		PageParameters pagerParams = new PageParameters();
 		pagerParams.put("repositories", StringUtils.flattenStrings(repositoriesModel.getObject()));
 		pagerParams.put("query", queryModel.getObject());
+		if (nextCursor != null) {
+			// Only used by the link to the next page
+			pagerParams.put("cursor", nextCursor);
+		}
 
 		boolean showPager = false;
 		int totalPages = 0;
@@ -0,0 +1,67 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.gitblit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gitblit.utils.CommitCache;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.registration.RegistrationHandle;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Publishes the statistics of the GitBlit {@link CommitCache} as Gerrit metrics (prefixed by Gerrit with "plugins/gitblit/"), so that the cache
+ * limits can be sized from the outside.
+ */
+@Singleton
+public class CommitCacheMetrics implements LifecycleListener {
+
+	private final MetricMaker metrics;
+
+	private final List<RegistrationHandle> registrations = new ArrayList<>();
+
+	@Inject
+	public CommitCacheMetrics(MetricMaker metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void start() {
+		final CommitCache cache = CommitCache.instance();
+		registrations.add(metrics.newCallbackMetric("commit_cache/hits", Long.class,
+				new Description("Commit cache requests answered from a current entry").setCumulative().setUnit("requests"), cache::getHitCount));
+		registrations.add(metrics.newCallbackMetric("commit_cache/misses", Long.class,
+				new Description("Commit cache requests that had to walk the repository").setCumulative().setUnit("requests"), cache::getMissCount));
+		registrations.add(metrics.newCallbackMetric("commit_cache/evictions", Long.class,
+				new Description("Commit cache entries evicted because of the memory budget").setCumulative().setUnit("entries"),
+				cache::getEvictionCount));
+		registrations.add(metrics.newCallbackMetric("commit_cache/entries", Integer.class,
+				new Description("Number of cached repository:branch entries").setGauge().setUnit("entries"), cache::getEntryCount));
+		registrations.add(metrics.newCallbackMetric("commit_cache/size", Long.class,
+				new Description("Estimated heap size of the commit cache").setGauge().setUnit(Units.BYTES), cache::getEstimatedSize));
+	}
+
+	@Override
+	public void stop() {
+		for (RegistrationHandle registration : registrations) {
+			registration.remove();
+		}
+		registrations.clear();
+	}
+}
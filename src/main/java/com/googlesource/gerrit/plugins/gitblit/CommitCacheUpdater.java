@@ -0,0 +1,96 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.gitblit;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.CommitCache;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Keeps the GitBlit {@link CommitCache} current by applying branch updates reported by Gerrit in the background, so that the first page view
+ * after a push doesn't pay for the incremental walk. Changes Gerrit doesn't report are still found by the cache's branch tip check.
+ */
+@Singleton
+public class CommitCacheUpdater implements GitReferenceUpdatedListener, LifecycleListener {
+
+	private static final Logger log = LoggerFactory.getLogger(CommitCacheUpdater.class);
+
+	private final GitRepositoryManager repoManager;
+
+	private final WorkQueue workQueue;
+
+	private volatile ScheduledExecutorService executor;
+
+	@Inject
+	public CommitCacheUpdater(GitRepositoryManager repoManager, WorkQueue workQueue) {
+		this.repoManager = repoManager;
+		this.workQueue = workQueue;
+	}
+
+	@Override
+	public void start() {
+		// A single thread: updates are serialized per branch by the cache anyway, and this is background work.
+		executor = workQueue.createQueue(1, "GitBlit-CommitCache");
+	}
+
+	@Override
+	public void stop() {
+		ScheduledExecutorService pool = executor;
+		executor = null;
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	@Override
+	public void onGitReferenceUpdated(Event event) {
+		String refName = event.getRefName();
+		if (refName == null || !refName.startsWith(Constants.R_HEADS)) {
+			return;
+		}
+		ScheduledExecutorService pool = executor;
+		if (pool == null) {
+			return;
+		}
+		String projectName = event.getProjectName();
+		try {
+			pool.execute(() -> update(projectName, refName));
+		} catch (RejectedExecutionException e) {
+			// Plugin is stopping; the cache goes away with it.
+		}
+	}
+
+	private void update(String projectName, String refName) {
+		try (Repository repository = repoManager.openRepository(Project.nameKey(projectName))) {
+			// GitBlit knows Gerrit's repositories by their directory names.
+			CommitCache.instance().refUpdated(projectName + Constants.DOT_GIT_EXT, repository, refName);
+		} catch (Exception e) {
+			log.warn("Cannot update commit cache for {}:{}; dropping the entry", projectName, refName, e);
+			CommitCache.instance().clear(projectName + Constants.DOT_GIT_EXT, refName);
+		}
+	}
+}
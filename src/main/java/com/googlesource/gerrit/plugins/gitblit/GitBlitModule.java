@@ -13,6 +13,10 @@
 // limitations under the License.
 package com.googlesource.gerrit.plugins.gitblit;
 
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.events.NewProjectCreatedListener;
+import com.google.gerrit.extensions.events.ProjectDeletedListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.webui.BranchWebLink;
 import com.google.gerrit.extensions.webui.FileHistoryWebLink;
@@ -23,6 +27,7 @@ import com.google.gerrit.extensions.webui.ProjectWebLink;
 import com.google.gerrit.extensions.webui.TagWebLink;
 import com.google.gerrit.extensions.webui.TopMenu;
 import com.google.inject.AbstractModule;
+import com.google.inject.internal.UniqueAnnotations;
 
 public class GitBlitModule extends AbstractModule {
 
@@ -36,6 +41,12 @@ public class GitBlitModule extends AbstractModule {
 		DynamicSet.bind(binder(), PatchSetWebLink.class).to(GitBlitWebUrls.class);
 		DynamicSet.bind(binder(), ProjectWebLink.class).to(GitBlitWebUrls.class);
 		DynamicSet.bind(binder(), TagWebLink.class).to(GitBlitWebUrls.class);
+		bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(CommitCacheMetrics.class);
+		DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(CommitCacheUpdater.class);
+		bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(CommitCacheUpdater.class);
+		DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(LuceneIndexUpdater.class);
+		DynamicSet.bind(binder(), NewProjectCreatedListener.class).to(RepositoryNameCacheUpdater.class);
+		DynamicSet.bind(binder(), ProjectDeletedListener.class).to(RepositoryNameCacheUpdater.class);
 	}
 
 }
@@ -0,0 +1,47 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.gitblit;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import com.gitblit.service.LuceneService;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.inject.Singleton;
+
+/**
+ * Reports branch updates to GitBlit's {@link LuceneService}, so that it can update the indexes of exactly the repositories that changed instead
+ * of polling all repositories.
+ */
+@Singleton
+public class LuceneIndexUpdater implements GitReferenceUpdatedListener {
+
+	@Override
+	public void onGitReferenceUpdated(Event event) {
+		String refName = event.getRefName();
+		if (refName == null || !refName.startsWith(Constants.R_HEADS)) {
+			return;
+		}
+		LuceneService service = LuceneService.instance();
+		if (service != null) {
+			// GitBlit knows Gerrit's repositories by their directory names.
+			service.refUpdated(event.getProjectName() + Constants.DOT_GIT_EXT, refName, toObjectId(event.getOldObjectId()),
+					toObjectId(event.getNewObjectId()));
+		}
+	}
+
+	private static ObjectId toObjectId(String id) {
+		return id != null && ObjectId.isId(id) ? ObjectId.fromString(id) : ObjectId.zeroId();
+	}
+}
@@ -22,6 +22,7 @@ import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.gitblit.auth.GerritGitBlitRepositoryManager;
 
 @Singleton
 public class PluginActivator implements LifecycleListener {
@@ -31,10 +32,13 @@ public class PluginActivator implements LifecycleListener {
 
 	private final GerritWicketFilter filter;
 
+	private final GerritGitBlitRepositoryManager repositoryManager;
+
 	@Inject
-	public PluginActivator(@PluginName String pluginName, GerritWicketFilter filter) {
+	public PluginActivator(@PluginName String pluginName, GerritWicketFilter filter, GerritGitBlitRepositoryManager repositoryManager) {
 		this.pluginName = pluginName;
 		this.filter = filter;
+		this.repositoryManager = repositoryManager;
 		// Just some string that is unique per plugin instance. This is used ultimately in
 		// GerritGitBlitWebApp.newRequestCycleProcessor to expunge stale Java objects attached to the
 		// HTTP session by Wicket. They become "stale" in a plugin reload, because they will have
@@ -57,6 +61,10 @@ public class PluginActivator implements LifecycleListener {
 	@Override
 	public void stop() {
 		log.info("Stopping plugin {}", pluginName);
+		// Don't keep walking repositories on behalf of a plugin instance that is going away.
+		repositoryManager.cancelCommitCacheLoader();
+		// Save the commit cache so that the next plugin instance doesn't have to rebuild it from scratch.
+		repositoryManager.saveCommitCache();
 		// Wicket internally keeps a number of session-related things around. To support clean Gerrit plugin reloading,
 		// we must be sure that this data survives in proper form. The main problem here is that the HTTP Session is
 		// kept across the plugin reload, and Wicket stores stuff keyed by sessionId. The call below ultimately will
@@ -0,0 +1,39 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.gitblit;
+
+import org.eclipse.jgit.lib.Constants;
+
+import com.gitblit.utils.RepositoryNameCache;
+import com.google.gerrit.extensions.events.NewProjectCreatedListener;
+import com.google.gerrit.extensions.events.ProjectDeletedListener;
+import com.google.inject.Singleton;
+
+/**
+ * Reports projects created or deleted in Gerrit to GitBlit's {@link RepositoryNameCache}.
+ */
+@Singleton
+public class RepositoryNameCacheUpdater implements NewProjectCreatedListener, ProjectDeletedListener {
+
+	@Override
+	public void onNewProjectCreated(NewProjectCreatedListener.Event event) {
+		// GitBlit knows Gerrit's repositories by their directory names.
+		RepositoryNameCache.instance().added(event.getProjectName() + Constants.DOT_GIT_EXT);
+	}
+
+	@Override
+	public void onProjectDeleted(ProjectDeletedListener.Event event) {
+		RepositoryNameCache.instance().removed(event.getProjectName() + Constants.DOT_GIT_EXT);
+	}
+}
@@ -0,0 +1,306 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.gitblit.app;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.manager.IRepositoryManager;
+import com.gitblit.models.RefModel;
+import com.gitblit.utils.CommitCache;
+import com.gitblit.utils.JGitUtils;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Populates the {@link CommitCache} in the background when the plugin starts.
+ * <p>
+ * Repositories are loaded by a pool of worker threads, most recently changed repositories first, so that the repositories users are most likely
+ * to look at are cached early. To find the order without opening every repository up front, the last change of a repository is estimated from
+ * the modification times of its refs and packs. The number of commits walked per second can be throttled to limit the I/O load on a freshly
+ * started server.
+ * </p>
+ * <p>
+ * If the cache was saved when the plugin was stopped last time, it is restored first. Restored branches whose tips haven't moved then don't need
+ * to be walked at all.
+ * </p>
+ */
+public class CommitCacheLoader {
+
+	private static final Logger log = LoggerFactory.getLogger(CommitCacheLoader.class);
+
+	/**
+	 * gitblit.properties key for the number of threads populating the commit cache.
+	 */
+	public static final String WARMUP_THREADS_KEY = "web.activityCacheWarmupThreads";
+
+	/**
+	 * gitblit.properties key for the maximum number of commits per second loaded while populating the commit cache. 0 means no limit.
+	 */
+	public static final String WARMUP_RATE_KEY = "web.activityCacheWarmupRate";
+
+	/** Files and directories of a repository whose modification time tells when it last changed. */
+	private static final String[] CHANGE_INDICATORS = { Constants.PACKED_REFS, Constants.R_HEADS, "objects/pack" };
+
+	/** Time to sleep between two attempts to acquire permits from the throttle. */
+	private static final long THROTTLE_STEP_MILLIS = 100;
+
+	/** Minimum time between two progress messages. */
+	private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+	private final IRepositoryManager repositoryManager;
+
+	private final File cacheFile;
+
+	private final int threads;
+
+	private final RateLimiter throttle;
+
+	private final AtomicInteger done = new AtomicInteger();
+
+	private final AtomicLong commitCount = new AtomicLong();
+
+	private final AtomicLong lastProgress = new AtomicLong();
+
+	/** Commits loaded but not yet paid for with permits from the throttle; paid for before the next branch is walked. */
+	private final AtomicLong unpaidCommits = new AtomicLong();
+
+	private volatile boolean cancelled;
+
+	private volatile ExecutorService workers;
+
+	private Thread coordinator;
+
+	/**
+	 * Creates a new loader.
+	 *
+	 * @param repositoryManager
+	 *            to get the repositories from
+	 * @param settings
+	 *            to read the configuration from
+	 * @param cacheFile
+	 *            file written by {@link CommitCache#writeTo(File)} to restore the cache from first; may be {@code null}
+	 */
+	public CommitCacheLoader(IRepositoryManager repositoryManager, IStoredSettings settings, File cacheFile) {
+		this.repositoryManager = repositoryManager;
+		this.cacheFile = cacheFile;
+		int defaultThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		this.threads = Math.max(1, settings.getInteger(WARMUP_THREADS_KEY, defaultThreads));
+		int rate = settings.getInteger(WARMUP_RATE_KEY, 0);
+		this.throttle = rate > 0 ? RateLimiter.create(rate) : null;
+	}
+
+	/**
+	 * Starts populating the commit cache in the background.
+	 */
+	public synchronized void start() {
+		if (coordinator != null) {
+			return;
+		}
+		coordinator = new Thread() {
+			@Override
+			public void run() {
+				load();
+			}
+		};
+		coordinator.setName("CommitCacheLoader");
+		coordinator.setDaemon(true);
+		coordinator.start();
+	}
+
+	/**
+	 * Stops populating the commit cache. Repositories already loaded remain cached; branches being loaded at the time are completed.
+	 */
+	public void cancel() {
+		cancelled = true;
+		ExecutorService pool = workers;
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+		Thread thread;
+		synchronized (this) {
+			thread = coordinator;
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void load() {
+		long start = System.nanoTime();
+		if (cacheFile != null) {
+			CommitCache.instance().readFrom(cacheFile);
+		}
+		Date cutoff = CommitCache.instance().getCutoffDate();
+		List<Candidate> candidates = getCandidates();
+		if (cancelled) {
+			log.info("Populating commit cache cancelled");
+			return;
+		}
+		// Most recently changed first
+		candidates.sort((a, b) -> Long.compare(b.lastModified, a.lastModified));
+		int total = candidates.size();
+		log.info("Populating commit cache with {} repositories using {} threads{}", total, threads,
+				throttle != null ? " at " + (long) throttle.getRate() + " commits/s" : "");
+		long loadStart = System.nanoTime();
+		lastProgress.set(loadStart);
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("CommitCacheLoader-%d").setDaemon(true).build());
+		workers = pool;
+		if (cancelled) {
+			// cancel() may have missed the pool
+			pool.shutdownNow();
+		}
+		try {
+			for (Candidate candidate : candidates) {
+				pool.execute(() -> load(candidate.name, cutoff, total, loadStart));
+			}
+			pool.shutdown();
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				// Keep waiting; progress is reported by the workers.
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			// RejectedExecutionException if cancelled while submitting
+			pool.shutdownNow();
+			if (!cancelled) {
+				throw e;
+			}
+		}
+		CommitCache cache = CommitCache.instance();
+		log.info("{} commit cache for {} of {} repositories ({} commits) in {} s: {} entries, ~{} bytes, {} evictions",
+				cancelled ? "Cancelled populating" : "Done populating", done.get(), total, commitCount.get(),
+				TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), cache.getEntryCount(), cache.getEstimatedSize(),
+				cache.getEvictionCount());
+	}
+
+	private List<Candidate> getCandidates() {
+		File repositoriesFolder = repositoryManager.getRepositoriesFolder();
+		List<Candidate> candidates = new ArrayList<>();
+		for (String repositoryName : repositoryManager.getRepositoryList()) {
+			if (cancelled) {
+				break;
+			}
+			// Only an estimate, good enough for the order: whether the repository has recently changed branches at all is determined by the
+			// workers.
+			File directory = new File(repositoriesFolder, repositoryName);
+			long lastModified = 0;
+			for (String indicator : CHANGE_INDICATORS) {
+				lastModified = Math.max(lastModified, new File(directory, indicator).lastModified());
+			}
+			candidates.add(new Candidate(repositoryName, lastModified));
+		}
+		return candidates;
+	}
+
+	private void load(String repositoryName, Date cutoff, int total, long start) {
+		if (cancelled) {
+			return;
+		}
+		Repository repository = repositoryManager.getRepository(repositoryName);
+		if (repository == null) {
+			return;
+		}
+		try {
+			for (RefModel ref : JGitUtils.getLocalBranches(repository, true, -1)) {
+				if (cancelled) {
+					return;
+				}
+				if (!ref.getDate().after(cutoff)) {
+					// branch not recently updated
+					continue;
+				}
+				throttle();
+				if (cancelled) {
+					return;
+				}
+				int loaded = CommitCache.instance().load(repositoryName, repository, ref.getName());
+				if (loaded > 0) {
+					log.debug("Cached {} commits for {}:{}", loaded, repositoryName, ref.getName());
+					commitCount.addAndGet(loaded);
+					if (throttle != null && loaded > 1) {
+						// One permit was acquired before the walk
+						unpaidCommits.addAndGet(loaded - 1);
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			log.warn("Cannot populate commit cache for repository {}", repositoryName, e);
+		} finally {
+			repository.close();
+		}
+		reportProgress(done.incrementAndGet(), total, start);
+	}
+
+	/**
+	 * Waits until the next branch may be walked: acquires a permit for it, and permits for all commits loaded so far that haven't been paid
+	 * for yet.
+	 */
+	private void throttle() {
+		if (throttle == null) {
+			return;
+		}
+		int commits = (int) Math.min(Integer.MAX_VALUE, 1 + unpaidCommits.getAndSet(0));
+		// RateLimiter.acquire() can't be interrupted. Sleep in short steps until the permits are available right away, so that cancel() takes
+		// effect promptly. (tryAcquire() with a timeout doesn't wait at all if the permits can't be had within the timeout.)
+		try {
+			while (!cancelled && !throttle.tryAcquire(commits)) {
+				Thread.sleep(THROTTLE_STEP_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			// cancel() shuts the pool down
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void reportProgress(int current, int total, long start) {
+		long now = System.nanoTime();
+		long last = lastProgress.get();
+		if (current < total && now - last < PROGRESS_INTERVAL || !lastProgress.compareAndSet(last, now)) {
+			return;
+		}
+		long elapsed = now - start;
+		long eta = current > 0 ? elapsed / current * (total - current) : 0;
+		log.info("Populating commit cache: {} of {} repositories, {} commits, {} s elapsed, ETA {} s", current, total, commitCount.get(),
+				TimeUnit.NANOSECONDS.toSeconds(elapsed), TimeUnit.NANOSECONDS.toSeconds(eta));
+	}
+
+	private static class Candidate {
+
+		final String name;
+
+		/** Estimated time of the last change, in milliseconds since the epoch; 0 if unknown. */
+		final long lastModified;
+
+		Candidate(String name, long lastModified) {
+			this.name = name;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -13,6 +13,9 @@
 // limitations under the License.
 package com.googlesource.gerrit.plugins.gitblit.auth;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,16 +29,39 @@ import com.gitblit.models.UserModel;
 import com.gitblit.utils.CommitCache;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.gitblit.app.CommitCacheLoader;
 
 @Singleton
 public class GerritGitBlitRepositoryManager extends RepositoryManager {
 
 	private static final Logger log = LoggerFactory.getLogger(GerritGitBlitRepositoryManager.class);
 
+	/**
+	 * gitblit.properties key for the maximum number of repository:branch entries in the commit cache.
+	 */
+	private static final String COMMIT_CACHE_MAX_ENTRIES_KEY = "web.activityCacheMaxEntries";
+
+	/**
+	 * gitblit.properties key for the maximum estimated heap size of the commit cache.
+	 */
+	private static final String COMMIT_CACHE_MAX_SIZE_KEY = "web.activityCacheMaxSize";
+
+	/**
+	 * Name of the file in the plugin's data directory the commit cache is saved to when the plugin stops.
+	 */
+	private static final String COMMIT_CACHE_FILE = "commitcache.bin";
+
+	/**
+	 * Default for {@link #COMMIT_CACHE_MAX_SIZE_KEY}: 128MB.
+	 */
+	private static final long COMMIT_CACHE_MAX_SIZE = 128L * 1024 * 1024;
+
 	private final IRuntimeManager runtimeManager;
 
 	private final IUserManager userManager;
 
+	private volatile CommitCacheLoader commitCacheLoader;
+
 	@Inject
 	public GerritGitBlitRepositoryManager(final IRuntimeManager runtimeManager, final IPluginManager pluginManager, final IUserManager userManager) {
 		super(runtimeManager, pluginManager, userManager);
@@ -102,17 +128,37 @@ public class GerritGitBlitRepositoryManager extends RepositoryManager {
 			return;
 		}
 		CommitCache.instance().setCacheDays(daysToCache);
+		CommitCache.instance().setCacheLimits(runtimeManager.getSettings().getInteger(COMMIT_CACHE_MAX_ENTRIES_KEY, 0),
+				runtimeManager.getSettings().getFilesize(COMMIT_CACHE_MAX_SIZE_KEY, COMMIT_CACHE_MAX_SIZE));
 		// Run this potentially long-running operation in the background
-		Thread loader = new Thread() {
-			@Override
-			public void run() {
-				log.info("Starting to populate commit cache in background");
-				GerritGitBlitRepositoryManager.super.configureCommitCache();
-				log.info("Done populating commit cache in background");
-			}
-		};
-		loader.setName("CommitCacheLoader");
-		loader.setDaemon(true);
+		CommitCacheLoader loader = new CommitCacheLoader(this, runtimeManager.getSettings(), getCommitCacheFile());
+		commitCacheLoader = loader;
 		loader.start();
 	}
+
+	/**
+	 * Stops populating the commit cache if that is still running.
+	 */
+	public void cancelCommitCacheLoader() {
+		CommitCacheLoader loader = commitCacheLoader;
+		if (loader != null) {
+			loader.cancel();
+			commitCacheLoader = null;
+		}
+	}
+
+	/**
+	 * Saves the commit cache to the plugin's data directory, from where it'll be restored on the next start.
+	 */
+	public void saveCommitCache() {
+		try {
+			CommitCache.instance().writeTo(getCommitCacheFile());
+		} catch (IOException e) {
+			log.warn("Cannot save commit cache", e);
+		}
+	}
+
+	private File getCommitCacheFile() {
+		return new File(runtimeManager.getBaseFolder(), COMMIT_CACHE_FILE);
+	}
 }